@@ -0,0 +1,59 @@
+package io.metaparticle;
+
+import io.metaparticle.containerlib.elector.LockServer;
+import io.metaparticle.containerlib.elector.MemoryStorage;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full client cycle, lock() then unlock(), against an in-process LockServer.
+// Acquiring a lock this server already owns takes the same GET + PUT as a renewal.
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LockBenchmark {
+    private MemoryStorage storage;
+    private LockServer server;
+    private Lock lock;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        storage = new MemoryStorage();
+        server = new LockServer(storage, "bench", 30 * 1000, port);
+        server.run();
+        lock = new Lock("bench", "http://localhost:" + port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        storage.close();
+    }
+
+    @Benchmark
+    public void lockUnlock() throws InterruptedException {
+        lock.lock();
+        lock.unlock();
+    }
+}
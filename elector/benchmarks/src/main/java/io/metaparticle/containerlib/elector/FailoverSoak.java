@@ -0,0 +1,352 @@
+package io.metaparticle.containerlib.elector;
+
+import io.metaparticle.LockListener;
+import io.metaparticle.Log;
+import io.metaparticle.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+// A failover soak for the elector. Starts a number of pods, each a LockServer
+// with its own owner name and a share of the contenders as io.metaparticle.Lock
+// clients, all over one MemoryStorage. Each round waits for a leader, measures
+// the steady state, then injects a fault into the leader's pod:
+//
+//   crash  the pod's server and clients die without releasing the lock, and a
+//          replacement pod joins
+//   pause  the pod's storage calls block for --pause-ms, as if the sidecar
+//          were stopped, and the pod is left to find out it lost the lock
+//
+// and measures the time until another pod holds the lock, any time two pods
+// believe they hold it at once, and the request and storage load around it.
+//
+//   java -cp target/benchmarks.jar io.metaparticle.containerlib.elector.FailoverSoak \
+//       --contenders 1000 --pods 50 --rounds 5 --fault crash
+public class FailoverSoak {
+    private static class Pod {
+        final String name;
+        final LockServer server;
+        final FaultyStorage storage;
+        final List<Contender> clients = new ArrayList<>();
+        // Clients in this pod that currently believe they hold the lock.
+        int holding;
+        boolean dead;
+
+        Pod(String name, LockServer server, FaultyStorage storage) {
+            this.name = name;
+            this.server = server;
+            this.storage = storage;
+        }
+    }
+
+    private class Contender implements LockListener {
+        final Pod pod;
+        final io.metaparticle.Lock lock;
+        volatile CompletableFuture<Void> pending;
+
+        Contender(Pod pod, String baseUri) {
+            this.pod = pod;
+            this.lock = new io.metaparticle.Lock(lockName, baseUri);
+            this.lock.setLockListener(this);
+        }
+
+        void contend() {
+            pending = lock.lockAsync();
+        }
+
+        @Override
+        public void lockAcquired() {
+            acquired(this);
+        }
+
+        @Override
+        public void lockLost() {
+            lost(this);
+            synchronized (FailoverSoak.this) {
+                if (pod.dead) {
+                    return;
+                }
+            }
+            contend();
+        }
+    }
+
+    private final String lockName = "soak";
+    private final MemoryStorage memory = new MemoryStorage();
+    private final AtomicLong storageOps = new AtomicLong();
+    private final Executor executor;
+    private final int clientsPerPod;
+    private final long ttl;
+    private final long latencyMillis;
+    private final List<Pod> pods = new ArrayList<>();
+    private int generation;
+
+    // Guarded by this.
+    private int holdingPods;
+    private long splitStart;
+    private final List<Long> splitWindows = new ArrayList<>();
+    private Pod faulted;
+    private long faultAt;
+    private Pod takeover;
+    private long takeoverAt;
+
+    FailoverSoak(int contenders, int podCount, long ttl, long latencyMillis) throws IOException {
+        this.clientsPerPod = Math.max(1, contenders / podCount);
+        this.ttl = ttl;
+        this.latencyMillis = latencyMillis;
+        // Every waiting contender holds a server thread and a client connection.
+        Executor ex = LockServer.virtualThreads();
+        this.executor = ex != null ? ex : LockServer.workerPool(contenders + 64, contenders);
+        io.metaparticle.Lock.setConcurrency(contenders * 2, clientsPerPod * 2);
+        for (int i = 0; i < podCount; i++) {
+            startPod();
+        }
+    }
+
+    private Pod startPod() throws IOException {
+        String name = "pod-" + (generation++);
+        int port = LockServerBenchmark.freePort();
+        FaultyStorage storage = new FaultyStorage(memory, latencyMillis, storageOps);
+        LockServer server = new LockServer(storage, name, ttl, port);
+        server.setExecutor(executor);
+        server.run();
+        Pod pod = new Pod(name, server, storage);
+        for (int i = 0; i < clientsPerPod; i++) {
+            pod.clients.add(new Contender(pod, "http://localhost:" + port));
+        }
+        synchronized (this) {
+            pods.add(pod);
+        }
+        for (Contender c : pod.clients) {
+            c.contend();
+        }
+        return pod;
+    }
+
+    private synchronized void acquired(Contender c) {
+        if (c.pod.dead || c.pod.holding++ > 0) {
+            return;
+        }
+        holdingPods++;
+        long now = System.currentTimeMillis();
+        if (holdingPods > 1 && splitStart == 0) {
+            splitStart = now;
+        }
+        if (faulted != null && takeover == null && c.pod != faulted) {
+            takeover = c.pod;
+            takeoverAt = now;
+        }
+        notifyAll();
+    }
+
+    private synchronized void lost(Contender c) {
+        if (c.pod.dead || --c.pod.holding > 0) {
+            return;
+        }
+        podReleased();
+    }
+
+    // Called with this held when a pod stops holding the lock.
+    private void podReleased() {
+        holdingPods--;
+        if (holdingPods <= 1 && splitStart != 0) {
+            splitWindows.add(System.currentTimeMillis() - splitStart);
+            splitStart = 0;
+        }
+        notifyAll();
+    }
+
+    private synchronized Pod leader() {
+        if (holdingPods != 1) {
+            return null;
+        }
+        for (Pod p : pods) {
+            if (!p.dead && p.holding > 0) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean await(BooleanSupplier done, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!done.getAsBoolean()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private void crash(Pod pod) {
+        synchronized (this) {
+            if (pod.holding > 0) {
+                pod.holding = 0;
+                podReleased();
+            }
+            pod.dead = true;
+        }
+        pod.server.stop();
+        for (Contender c : pod.clients) {
+            c.pending.cancel(false);
+        }
+    }
+
+    // The total number of HTTP requests served by every LockServer so far.
+    private static long requests() throws IOException {
+        StringWriter w = new StringWriter();
+        MetricsRegistry.defaultRegistry.write(w);
+        long total = 0;
+        for (String line : w.toString().split("\n")) {
+            if (line.startsWith("lockserver_request_duration_seconds_count")) {
+                total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return total;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int ix = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(ix, sorted.size() - 1)));
+    }
+
+    void run(int rounds, String fault, long pauseMillis, long settleMillis) throws Exception {
+        List<Long> failovers = new ArrayList<>();
+        List<Long> herds = new ArrayList<>();
+        double steadyRequests = 0;
+        double steadyOps = 0;
+        int contenders = pods.size() * clientsPerPod;
+        System.out.printf("%d contenders in %d pods, ttl %dms, storage latency %dms, fault %s%n",
+                contenders, pods.size(), ttl, latencyMillis, fault);
+
+        for (int round = 1; round <= rounds; round++) {
+            if (!await(() -> leader() != null, 3 * ttl)) {
+                System.out.printf("round %d: no single leader after %dms%n", round, 3 * ttl);
+                continue;
+            }
+            long requests = requests();
+            long ops = storageOps.get();
+            Thread.sleep(settleMillis);
+            steadyRequests += (requests() - requests) * 1000.0 / settleMillis;
+            steadyOps += (storageOps.get() - ops) * 1000.0 / settleMillis;
+
+            Pod leader = leader();
+            if (leader == null) {
+                System.out.printf("round %d: leader changed while settling%n", round);
+                continue;
+            }
+            synchronized (this) {
+                faulted = leader;
+                faultAt = System.currentTimeMillis();
+                takeover = null;
+            }
+            requests = requests();
+            ops = storageOps.get();
+            if (fault.equals("pause")) {
+                leader.storage.pause(pauseMillis);
+            } else {
+                crash(leader);
+            }
+            boolean ok = await(() -> takeover != null, 3 * ttl + pauseMillis);
+            long failover;
+            synchronized (this) {
+                failover = ok ? takeoverAt - faultAt : -1;
+                faulted = null;
+            }
+            long herd = requests() - requests;
+            long herdOps = storageOps.get() - ops;
+            if (ok) {
+                failovers.add(failover);
+                // Requests from the fault until a second after the takeover.
+                Thread.sleep(1000);
+                herds.add(requests() - requests);
+            }
+            System.out.printf("round %d: %s %s, failover %dms, %d requests and %d storage ops until takeover%n",
+                    round, fault, leader.name, failover, herd, herdOps);
+            if (fault.equals("pause")) {
+                // Let the paused pod find out it lost the lock.
+                await(() -> holdingPods <= 1, pauseMillis + 2 * ttl);
+            } else {
+                startPod();
+            }
+        }
+
+        List<Long> sortedFailovers = new ArrayList<>(failovers);
+        Collections.sort(sortedFailovers);
+        List<Long> windows;
+        synchronized (this) {
+            windows = new ArrayList<>(splitWindows);
+            if (splitStart != 0) {
+                windows.add(System.currentTimeMillis() - splitStart);
+            }
+        }
+        Collections.sort(windows);
+        long splitTotal = 0;
+        for (long w : windows) {
+            splitTotal += w;
+        }
+        long herdMax = herds.isEmpty() ? 0 : Collections.max(herds);
+        System.out.println();
+        System.out.printf("failover ms      p50 %d  p90 %d  p99 %d  max %d  (%d of %d rounds)%n",
+                percentile(sortedFailovers, 0.5), percentile(sortedFailovers, 0.9),
+                percentile(sortedFailovers, 0.99), percentile(sortedFailovers, 1), failovers.size(), rounds);
+        System.out.printf("split brain      %d windows, %dms total, %dms max%n",
+                windows.size(), splitTotal, windows.isEmpty() ? 0 : windows.get(windows.size() - 1));
+        System.out.printf("steady state     %.1f requests/s, %.1f storage ops/s, %.3f requests/s per contender%n",
+                steadyRequests / rounds, steadyOps / rounds, steadyRequests / rounds / contenders);
+        System.out.printf("herd             %d requests max from fault to 1s after takeover, %.2f per contender%n",
+                herdMax, (double) herdMax / contenders);
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            result.put(args[i].substring(2), args[i + 1]);
+        }
+        return result;
+    }
+
+    private static long arg(Map<String, String> args, String name, long defaultValue) {
+        String value = args.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = parseArgs(argv);
+        int contenders = (int) arg(args, "contenders", 1000);
+        int pods = (int) arg(args, "pods", Math.min(contenders, 50));
+        // The client renews just after half the ttl, when the server will
+        // extend the lock, so half the ttl must cover the storage latency and
+        // the client's skew allowance.
+        long ttl = arg(args, "ttl-ms", 30 * 1000);
+        String fault = args.containsKey("fault") ? args.get("fault") : "crash";
+        if (!fault.equals("crash") && !fault.equals("pause")) {
+            throw new IllegalArgumentException("Unknown fault: " + fault);
+        }
+        if (!args.containsKey("log")) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        FailoverSoak soak = new FailoverSoak(contenders, pods, ttl, arg(args, "storage-latency-ms", 0));
+        soak.run((int) arg(args, "rounds", 5), fault, arg(args, "pause-ms", ttl + 5 * 1000),
+                arg(args, "settle-ms", 5 * 1000));
+        soak.memory.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,87 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Wraps a StorageInterface with injectable faults for FailoverSoak: a fixed
+// latency added to every operation, and pauses during which every operation
+// blocks, as if the process were stopped. Operations are counted into ops.
+class FaultyStorage implements StorageInterface {
+    private final StorageInterface storage;
+    private final long latencyMillis;
+    private final AtomicLong ops;
+    private volatile long pausedUntil;
+
+    FaultyStorage(StorageInterface storage, long latencyMillis, AtomicLong ops) {
+        this.storage = storage;
+        this.latencyMillis = latencyMillis;
+        this.ops = ops;
+    }
+
+    // Blocks every operation for the next millis.
+    void pause(long millis) {
+        pausedUntil = System.currentTimeMillis() + millis;
+    }
+
+    private void delay() throws IOException {
+        ops.incrementAndGet();
+        try {
+            long paused = pausedUntil - System.currentTimeMillis();
+            if (paused > 0) {
+                Thread.sleep(paused);
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException {
+        delay();
+        return storage.createLock(l);
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        delay();
+        return storage.updateLock(l);
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        delay();
+        return storage.getLock(name);
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        delay();
+        return storage.getVersion(name);
+    }
+
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        delay();
+        storage.releaseLock(l);
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        delay();
+        return storage.waitLock(name, resourceVersion, timeoutMillis);
+    }
+
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        delay();
+        return storage.updateLocks(names, updater);
+    }
+}
@@ -0,0 +1,90 @@
+package io.metaparticle.containerlib.elector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LockServer.handleLockServe end to end: HTTP over loopback into a LockServer
+// backed by MemoryStorage, measured as seen by the client.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LockServerBenchmark {
+    private MemoryStorage storage;
+    private LockServer server;
+    private String baseUri;
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port = freePort();
+        storage = new MemoryStorage();
+        server = new LockServer(storage, "bench", 30 * 1000, port);
+        server.run();
+        baseUri = "http://localhost:" + port;
+        request("PUT", "/locks/held");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        storage.close();
+    }
+
+    private int request(String method, String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUri + path).openConnection();
+        conn.setRequestMethod(method);
+        int code = conn.getResponseCode();
+        InputStream is = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (is != null) {
+            // Drain the body so the connection goes back to the keep-alive pool.
+            byte[] buf = new byte[4096];
+            while (is.read(buf) >= 0) {
+            }
+            is.close();
+        }
+        return code;
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        return request("GET", "/locks/held");
+    }
+
+    // Renewing a lock we already hold, the steady state for a leader.
+    @Benchmark
+    public int put() throws IOException {
+        return request("PUT", "/locks/held");
+    }
+
+    @Benchmark
+    public int getMissing() throws IOException {
+        return request("GET", "/locks/missing");
+    }
+}
@@ -0,0 +1,104 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Create, update and get on MemoryStorage from several threads. With names=1
+// every thread hits the same lock, with more the threads spread out. With
+// kind=file the same runs against FileStorage in a temporary directory, where
+// every write waits for the disk.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MemoryStorageBenchmark {
+    @Param({"1", "1024"})
+    public int names;
+
+    @Param({"memory", "file"})
+    public String kind;
+
+    private StorageInterface storage;
+    private AtomicLong created;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+    }
+
+    static Lock newLock(String name) {
+        Lock l = new Lock();
+        l.metadata = new V1ObjectMeta().name(name).namespace("default");
+        l.spec = new Lock.LockSpec();
+        l.spec.owner = "bench";
+        l.spec.expiry = "2030-01-01T00:00:00.000Z";
+        return l;
+    }
+
+    @Setup
+    public void setup() throws ApiException, IOException {
+        storage = kind.equals("file")
+            ? new FileStorage(Files.createTempDirectory("file-storage-bench"))
+            : new MemoryStorage();
+        created = new AtomicLong();
+        for (int i = 0; i < names; i++) {
+            storage.createLock(newLock("lock-" + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ((Closeable) storage).close();
+    }
+
+    private String pick(ThreadState ts) {
+        ts.next = (ts.next + 1) % names;
+        return "lock-" + ts.next;
+    }
+
+    @Benchmark
+    public Lock get(ThreadState ts) throws ApiException, IOException {
+        return storage.getLock(pick(ts));
+    }
+
+    // A read followed by a conditional write, as LockServer does for a PUT.
+    // Conflicts are part of what's being measured, so they're returned, not thrown.
+    @Benchmark
+    public Object update(ThreadState ts) throws IOException {
+        try {
+            Lock l = storage.getLock(pick(ts));
+            l.spec.owner = "bench";
+            return storage.updateLock(l);
+        } catch (ApiException ex) {
+            return ex;
+        }
+    }
+
+    @Benchmark
+    public Lock create() throws ApiException, IOException {
+        return storage.createLock(newLock("new-" + created.incrementAndGet()));
+    }
+}
@@ -0,0 +1,116 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Request path parsing in LockServer.validateRequest and Gson (de)serialization of Lock.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParsingBenchmark {
+    // Just enough of an exchange for validateRequest.
+    static class FakeExchange extends HttpExchange {
+        private final URI uri;
+        private final byte[] body;
+
+        FakeExchange(String uri, byte[] body) {
+            this.uri = URI.create(uri);
+            this.body = body;
+        }
+
+        public Headers getRequestHeaders() { return new Headers(); }
+        public Headers getResponseHeaders() { return new Headers(); }
+        public URI getRequestURI() { return uri; }
+        public String getRequestMethod() { return "PUT"; }
+        public HttpContext getHttpContext() { return null; }
+        public void close() {}
+        public InputStream getRequestBody() { return new ByteArrayInputStream(body); }
+        public OutputStream getResponseBody() { return new ByteArrayOutputStream(); }
+        public void sendResponseHeaders(int code, long length) {}
+        public InetSocketAddress getRemoteAddress() { return null; }
+        public int getResponseCode() { return 0; }
+        public InetSocketAddress getLocalAddress() { return null; }
+        public String getProtocol() { return "HTTP/1.1"; }
+        public Object getAttribute(String name) { return null; }
+        public void setAttribute(String name, Object value) {}
+        public void setStreams(InputStream i, OutputStream o) {}
+        public HttpPrincipal getPrincipal() { return null; }
+    }
+
+    private Gson gson;
+    private Gson adapterGson;
+    private Lock lock;
+    private String json;
+    private byte[] body;
+    private String expiry;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        adapterGson = LockAdapter.newGson();
+        lock = MemoryStorageBenchmark.newLock("my-lock");
+        lock.metadata.setResourceVersion("12345");
+        json = gson.toJson(lock);
+        body = json.getBytes();
+        expiry = lock.spec.expiry;
+    }
+
+    @Benchmark
+    public String validatePath() throws IOException {
+        return LockServer.validateRequest(gson, new FakeExchange("/locks/my-lock", body));
+    }
+
+    @Benchmark
+    public String validateBody() throws IOException {
+        return LockServer.validateRequest(gson, new FakeExchange("/locks", body));
+    }
+
+    @Benchmark
+    public String serialize() {
+        return gson.toJson(lock);
+    }
+
+    // What LockServer actually uses to write locks.
+    @Benchmark
+    public String serializeAdapter() {
+        return adapterGson.toJson(lock);
+    }
+
+    // A fresh string each time, so the parsed value isn't cached.
+    @Benchmark
+    public long parseExpiry() {
+        lock.spec.expiry = new String(expiry);
+        return lock.spec.getExpiryMillis();
+    }
+
+    @Benchmark
+    public Lock deserialize() {
+        return gson.fromJson(json, Lock.class);
+    }
+}
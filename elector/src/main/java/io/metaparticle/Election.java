@@ -1,89 +1,117 @@
-package io.metaparticle;
-
-public class Election implements LockListener, Runnable {
-    private Lock lock;
-    private Runnable electedAction;
-    private Runnable terminateAction;
-    // End signal is used to verify that the electedAction terminates properly when terminateAction
-    // is called.
-    private Object endSignal;
-    private boolean done;
-    private boolean running;
-    
-    public Election(String name, Runnable electedAction, Runnable terminateAction) {
-        this(name, "http://localhost:13131", electedAction, terminateAction);
-    }
-
-    public Election(String name, String baseUrl, Runnable electedAction, Runnable terminateAction) {
-        this.lock = new Lock(name, baseUrl);
-        this.lock.setLockListener(this);
-        this.electedAction = electedAction;
-        this.terminateAction = terminateAction;
-        this.endSignal = new Object();
-    }
-
-    // To be used for testing only. Simulates an overloaded
-    // server failing to update in the right time interval and
-    // losing the lock.
-    public void setFlakyElectionForTesting() {
-        this.lock.setFlakyLockForTesting();
-    }
-
-    public void shutdown() {
-        running = false;
-        synchronized (lock) {
-            lock.notify();
-        }
-    }
-
-    @Override
-    public void run() {
-        running = true;
-        while (running) {
-            try {
-                lock.lock();
-                synchronized (lock) {
-                    lock.wait();
-                }
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
-        }
-        lock.unlock();
-    }
-
-    @Override
-    public void lockAcquired() {
-        new Thread(new Runnable() {
-            public void run() {
-                done = false;
-                electedAction.run();
-                synchronized (endSignal) {
-                    endSignal.notify();
-                    done = true;
-                }
-            }
-        }).start();
-    }
-
-    @Override
-    public void lockLost() {
-        synchronized (endSignal) {
-            terminateAction.run();
-            // TODO: make this configurable?
-            try {
-                endSignal.wait(1000);
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
-            if (!done) {
-                System.err.println("Master didn't terminate in expected time, force terminating.");
-                System.exit(1);
-            }
-        }
-        synchronized (lock) {
-            lock.notify();
-        }
-    }
-
+package io.metaparticle;
+
+import io.metaparticle.metrics.JfrEvent;
+
+public class Election implements LockListener, Runnable {
+    private static final JfrEvent.Type electedEvent = JfrEvent.type("io.metaparticle.Elected",
+        "Elected", "This candidate won the election and is starting electedAction.",
+        "lock", String.class);
+    private static final JfrEvent.Type terminatedEvent = JfrEvent.type("io.metaparticle.ElectionTerminated",
+        "Election Terminated", "The lock was lost, from calling terminateAction to electedAction returning.",
+        "lock", String.class, "terminateActionMillis", long.class, "terminated", boolean.class);
+
+    private String name;
+    private Lock lock;
+    private Runnable electedAction;
+    private Runnable terminateAction;
+    // End signal is used to verify that the electedAction terminates properly when terminateAction
+    // is called.
+    private Object endSignal;
+    private boolean done;
+    private boolean running;
+    
+    public Election(String name, Runnable electedAction, Runnable terminateAction) {
+        this(name, "http://localhost:13131", electedAction, terminateAction);
+    }
+
+    public Election(String name, String baseUrl, Runnable electedAction, Runnable terminateAction) {
+        this(name, new Lock(name, baseUrl), electedAction, terminateAction);
+    }
+
+    public Election(String name, LockRouter router, Runnable electedAction, Runnable terminateAction) {
+        this(name, new Lock(name, router), electedAction, terminateAction);
+    }
+
+    private Election(String name, Lock lock, Runnable electedAction, Runnable terminateAction) {
+        this.name = name;
+        this.lock = lock;
+        this.lock.setLockListener(this);
+        this.electedAction = electedAction;
+        this.terminateAction = terminateAction;
+        this.endSignal = new Object();
+    }
+
+    // To be used for testing only. Simulates an overloaded
+    // server failing to update in the right time interval and
+    // losing the lock.
+    public void setFlakyElectionForTesting() {
+        this.lock.setFlakyLockForTesting();
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        while (running) {
+            try {
+                lock.lock();
+                synchronized (lock) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        // Releases the lock on the server, so another candidate takes over now
+        // rather than once the lock expires.
+        if (lock.isHeld()) {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void lockAcquired() {
+        electedEvent.begin().set(0, name).commit();
+        new Thread(new Runnable() {
+            public void run() {
+                done = false;
+                electedAction.run();
+                synchronized (endSignal) {
+                    endSignal.notify();
+                    done = true;
+                }
+            }
+        }).start();
+    }
+
+    @Override
+    public void lockLost() {
+        synchronized (endSignal) {
+            JfrEvent event = terminatedEvent.begin();
+            long start = System.nanoTime();
+            terminateAction.run();
+            event.set(0, name).set(1, (System.nanoTime() - start) / 1000000);
+            // TODO: make this configurable?
+            try {
+                endSignal.wait(1000);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            event.set(2, done).commit();
+            if (!done) {
+                System.err.println("Master didn't terminate in expected time, force terminating.");
+                System.exit(1);
+            }
+        }
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+
 }
\ No newline at end of file
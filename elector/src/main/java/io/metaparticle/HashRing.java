@@ -0,0 +1,70 @@
+package io.metaparticle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// A consistent hash ring. Each endpoint is hashed onto the ring at vnodes
+// points and a key belongs to the endpoint at the first point at or after
+// its own hash, wrapping round. Adding or removing one of N endpoints only
+// moves about 1/N of the keys, and the many points per endpoint keep their
+// shares even. Immutable, a membership change builds a new ring.
+final class HashRing {
+    private final List<String> endpoints;
+    private final long[] points;
+    private final String[] owners;
+
+    HashRing(Collection<String> endpoints, int vnodes) {
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(endpoints)));
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String endpoint : this.endpoints) {
+            for (int i = 0; i < vnodes; i++) {
+                ring.put(hash(endpoint + "#" + i), endpoint);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+    }
+
+    // The endpoints on the ring, sorted.
+    List<String> endpoints() {
+        return endpoints;
+    }
+
+    // The endpoint that owns key, or null if the ring is empty.
+    String route(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // 64-bit FNV-1a, with MurmurHash3's finalizer to spread similar keys out.
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,145 +1,735 @@
-package io.metaparticle;
-
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import java.io.IOException;
-import java.util.Random;
-
-public class Lock {
-    // TODO: Switch to a threadpool here?
-    private Thread maintainer;
-    private String name;
-    private boolean running;
-    private String baseUri;
-    private LockListener listener;
-
-    // For testing only!
-    // If true, the lock will purposesfully fail to update
-    // itself (and thus loose the lock) 50% of the time.
-    private boolean flaky;
-    private Random rand;
-
-    public Lock(String name) {
-        this(name, "http://localhost:13131");
-    }
-
-    public Lock(String name, String baseUri) {
-        this.name = name;
-        this.baseUri = baseUri;
-        this.listener = null;
-    }
-
-    // Make this lock flaky (e.g. lose the lock)
-    // Warning, should only be used for testing.
-    // Requires a lock listener, or the lock will exist.
-    public void setFlakyLockForTesting() {
-        flaky = true;
-        rand = new Random();
-    }
-
-    public void setLockListener(LockListener l) {
-        listener = l;
-    }
-
-    public synchronized void lock() throws InterruptedException {
-        if (maintainer != null) {
-            throw new IllegalStateException("Locks are not re-entrant!");
-        }
-        while (true) {
-            int code = -1;
-            try {
-                code = getLock(name);
-                if (code == 404 || code == 200) {
-                    code = updateLock(name);
-                }
-                if (code == 200) {
-                    holdLock(name);
-                    return;
-                }
-                if (code != 409) {
-                    System.out.println("Code was: " + code);
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            // TODO: introduce watch here instead of polling...
-            Thread.sleep(10 * 1000);
-        }
-    }
-
-    public synchronized void unlock() {
-        if (maintainer == null) {
-            throw new IllegalStateException("Lock is not held.");
-        }
-        running = false;
-        try {
-            maintainer.join(10 * 1000);
-        } catch (InterruptedException ex) {
-            ex.printStackTrace();
-        }
-    }
-
-    private int getLock(String name) throws IOException {
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.get(baseUri + "/locks/" + name)
-                .header("accept", "application/json")
-                .asJson();
-            return jsonResponse.getStatus();
-        } catch (UnirestException ex) {
-            throw new IOException(ex);
-        }
-    }
-
-    private int updateLock(String name) throws IOException {
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.put(baseUri + "/locks/" + name)
-                .header("accept", "application/json")
-                .asJson();
-            return jsonResponse.getStatus();
-        } catch (UnirestException ex) {
-            throw new IOException(ex);
-        }
-    }
-
-    private void holdLock(final String name) {
-        running = true;
-        if (listener != null) {
-            listener.lockAcquired();
-        }
-        maintainer = new Thread(new Runnable() {
-            public void run() {
-                while (running) {
-                    try {
-                        int code = getLock(name);
-                        if (code == 200) {
-                            code = updateLock(name);
-                        }
-                        if (code != 200) {
-                            System.out.println("Unexpected status: " + code);
-                            if (listener != null) {
-                                break;
-                            } else {
-                                System.exit(0);
-                            }
-                        }
-                        // This is only for testing.
-                        if (flaky && rand.nextBoolean()) {
-                            Thread.sleep(50 * 1000);
-                        } else {
-                            Thread.sleep(10 * 1000);
-                        }
-                    } catch (IOException | InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-                maintainer = null;
-                if (listener != null) {
-                    listener.lockLost();
-                }               
-            }
-        });
-        maintainer.start();
-    }
+package io.metaparticle;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.HttpRequest;
+import io.metaparticle.metrics.Counter;
+import io.metaparticle.metrics.Histogram;
+import io.metaparticle.metrics.JfrEvent;
+import io.metaparticle.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class Lock {
+    private static final double[] SLACK_BUCKETS = { -5, -1, 0, 1, 2, 5, 10, 15, 20, 30, 60 };
+
+    private static final Histogram acquireDuration = MetricsRegistry.defaultRegistry.histogram(
+        "lock_acquire_duration_seconds", "Time from calling lock() to holding the lock.",
+        Histogram.LATENCY_BUCKETS, "lock");
+    private static final Histogram renewalSlack = MetricsRegistry.defaultRegistry.histogram(
+        "lock_renewal_slack_seconds", "Time left before expiry when a renewal starts, negative if late.",
+        SLACK_BUCKETS, "lock");
+    private static final Counter acquired = MetricsRegistry.defaultRegistry.counter(
+        "lock_acquired_total", "Times the lock was acquired.", "lock");
+    private static final Counter lost = MetricsRegistry.defaultRegistry.counter(
+        "lock_lost_total", "Times the lock was lost or released.", "lock");
+
+    private static final JfrEvent.Type acquireEvent = JfrEvent.type("io.metaparticle.LockAcquire",
+        "Lock Acquire", "From asking for a lock to holding it or giving up.",
+        "lock", String.class, "endpoint", String.class, "attempts", int.class, "acquired", boolean.class);
+    private static final JfrEvent.Type renewalEvent = JfrEvent.type("io.metaparticle.LockRenewal",
+        "Lock Renewal", "One renewal of a held lock, from sending it to the server's answer.",
+        "lock", String.class, "endpoint", String.class, "code", int.class,
+        "slackMillis", long.class, "moved", boolean.class, "failures", int.class);
+
+    // How long a contender asks the server to block waiting for the lock to change.
+    private static final long WAIT_MILLIS = 30 * 1000;
+    // How far our clock may be behind the server's. Renewals aim to finish
+    // this long before the expiry the server sent.
+    private static final long SKEW_MILLIS = Long.getLong("io.metaparticle.lock.skewMillis", 500);
+    // Renewals are spread randomly over this fraction of their delay so that
+    // locks taken together don't renew together.
+    private static final double JITTER = 0.1;
+    private static final long MIN_RENEW_MILLIS = 50;
+    // First and largest backoff after a failed renewal.
+    private static final long BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 1000;
+    // How long to back off after an error before trying to acquire again.
+    private static final long RETRY_MILLIS = 10 * 1000;
+    // How often to look again at a lock that is still held on the server it
+    // was routed to before the ring changed.
+    private static final long MOVE_POLL_MILLIS = 1000;
+    // Not an HTTP status, the lock is still held on its previous server.
+    private static final int HELD_ELSEWHERE = -1;
+    // Not an HTTP status, the lock was let go of while it was being renewed.
+    private static final int LET_GO = -2;
+
+    private final LockRenewer renewer = LockRenewer.getInstance();
+    private String name;
+    private volatile boolean running;
+    // Set while an acquisition is in progress, so only one runs at a time.
+    private final AtomicBoolean acquiring = new AtomicBoolean();
+    // Attempts made by the acquisition in progress.
+    private final AtomicInteger attempts = new AtomicInteger();
+    // Incremented every time the lock is acquired or let go, so that a renewal
+    // belonging to an earlier hold of the lock does nothing.
+    private final AtomicLong lease = new AtomicLong();
+    private final LockRouter router;
+    // The last renewal sent, so a release can wait for it to finish first.
+    private volatile CompletableFuture<Integer> renewing = CompletableFuture.completedFuture(0);
+    // The server this lock is being acquired on, or is held on.
+    private volatile String endpoint;
+    private LockListener listener;
+    // The last listener callback made off the caller's thread, guarded by
+    // callbackLock. Each one is chained after the one before, see tell().
+    private CompletableFuture<Void> callbacks = CompletableFuture.completedFuture(null);
+    private final Object callbackLock = new Object();
+    // The resourceVersion of the lock as of the last response from the server.
+    private volatile String resourceVersion;
+    // The expiry of the lock as of the last response from the server, in epoch millis.
+    private volatile long expiry;
+    // The server's ttl, as estimated from the expiry it sets when it writes the lock.
+    private volatile long ttl;
+    // Smoothed round trip time of requests to the server.
+    private volatile long rtt;
+    // How long the server last asked us to back off for, see retryAfter().
+    private volatile long retryAfter;
+    // For a place on a counted or shared lock (see Semaphore and
+    // ReadWriteLock), the id we hold it under, the mode and the limit.
+    // Null for a plain lock.
+    private final String holder;
+    private final boolean exclusive;
+    private final int limit;
+
+    // For testing only!
+    // If true, the lock will purposesfully fail to update
+    // itself (and thus loose the lock) 50% of the time.
+    private boolean flaky;
+    private Random rand;
+
+    public Lock(String name) {
+        this(name, "http://localhost:13131");
+    }
+
+    // The server at baseUri takes the lock as its own, so it is shared by
+    // every client of that server: meant for one server per client, as a sidecar.
+    public Lock(String name, String baseUri) {
+        this(name, LockRouter.of(baseUri), null, false, 0);
+    }
+
+    // Picks the server for the lock with router. Every client contending for
+    // the lock is routed to the same server, so rather than the server's it
+    // takes the lock as an exclusive holder with an id of its own.
+    public Lock(String name, LockRouter router) {
+        this(name, router, UUID.randomUUID().toString(), true, 1);
+    }
+
+    Lock(String name, LockRouter router, String holder, boolean exclusive, int limit) {
+        this.name = name;
+        this.router = router;
+        this.listener = null;
+        this.holder = holder;
+        this.exclusive = exclusive;
+        this.limit = limit;
+    }
+
+    // Make this lock flaky (e.g. lose the lock)
+    // Warning, should only be used for testing.
+    // Requires a lock listener, or the lock will exist.
+    public void setFlakyLockForTesting() {
+        flaky = true;
+        rand = new Random();
+    }
+
+    public void setLockListener(LockListener l) {
+        listener = l;
+    }
+
+    public synchronized void lock() throws InterruptedException {
+        CompletableFuture<Void> f = lockAsync();
+        try {
+            f.get();
+        } catch (InterruptedException ex) {
+            // Give up on the attempt, if it wins the lock anyway it is let go.
+            f.cancel(false);
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    // Completes once the lock is held. No thread is parked while waiting, the
+    // requests run on Unirest's shared async client and the follow up work on
+    // the renewer's workers. Cancelling the future abandons the attempt.
+    public CompletableFuture<Void> lockAsync() {
+        final CompletableFuture<Boolean> result = acquireUntil(Long.MAX_VALUE);
+        // A dependent future doesn't pass cancellation back to its source, so
+        // the caller's one does that itself.
+        final CompletableFuture<Void> f = new CompletableFuture<Void>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                result.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        result.whenComplete((held, ex) -> {
+            if (ex != null) {
+                f.completeExceptionally(ex);
+            } else {
+                f.complete(null);
+            }
+        });
+        return f;
+    }
+
+    // Completes with true once the lock is held, or false if it is still held
+    // by someone else when the timeout runs out.
+    public CompletableFuture<Boolean> tryLock(Duration timeout) {
+        long millis = timeout.toMillis();
+        long now = System.currentTimeMillis();
+        return acquireUntil(millis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis);
+    }
+
+    // Stops renewing the lock, tells the listener, and then releases the lock
+    // on the server so that a waiting contender can take it straight away.
+    public synchronized void unlock() {
+        if (!letGo()) {
+            throw new IllegalStateException("Lock is not held.");
+        }
+        deleteAfterRenewal(endpoint).join();
+    }
+
+    // As unlock(), but the future completes once the server has been told.
+    public CompletableFuture<Void> release() {
+        if (!letGo()) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("Lock is not held."));
+            return f;
+        }
+        return deleteAfterRenewal(endpoint);
+    }
+
+    // Renews the lock once, completing with true if it is still ours. Renewals
+    // already happen in the background, this is for callers that want to
+    // extend the lock before a long piece of work.
+    public CompletableFuture<Boolean> renew() {
+        CompletableFuture<Integer> renewal = renewLock(lease.get(), running ? deadline() : Long.MAX_VALUE);
+        renewing = renewal;
+        return renewal.thenApply(code -> code == 200);
+    }
+
+    public boolean isHeld() {
+        return running;
+    }
+
+    // Sets the size of the connection pool shared by every Lock in the JVM.
+    // Each contender waiting on the server holds a connection, so waiting on
+    // more than maxPerRoute locks through one server needs this raised.
+    public static void setConcurrency(int maxTotal, int maxPerRoute) {
+        Unirest.setConcurrency(maxTotal, maxPerRoute);
+    }
+
+    private CompletableFuture<Boolean> acquireUntil(long deadline) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (running || !acquiring.compareAndSet(false, true)) {
+            result.completeExceptionally(new IllegalStateException("Locks are not re-entrant!"));
+            return result;
+        }
+        final JfrEvent event = acquireEvent.begin();
+        attempts.set(0);
+        result.whenComplete((held, ex) -> {
+            event.set(0, name).set(1, endpoint).set(2, attempts.get()).set(3, held != null && held).commit();
+            acquiring.set(false);
+        });
+        acquire(result, deadline, System.nanoTime());
+        return result;
+    }
+
+    // One attempt to take the lock. On a conflict it waits on the server for
+    // the lock to change and tries again, on an error it backs off.
+    private void acquire(final CompletableFuture<Boolean> result, final long deadline, final long start) {
+        if (result.isDone()) {
+            return;
+        }
+        final String at = router.route(name);
+        if (at == null) {
+            Log.info("No lock servers to acquire " + name + " on");
+            retry(result, deadline, start, deadline - System.currentTimeMillis());
+            return;
+        }
+        endpoint = at;
+        attempts.incrementAndGet();
+        CompletableFuture<Long> heldUntil = CompletableFuture.completedFuture(0L);
+        for (Map.Entry<String, Long> previous : router.previousRoutes(name).entrySet()) {
+            heldUntil = heldUntil.thenCombine(heldOn(previous.getKey(), previous.getValue()), Math::max);
+        }
+        heldUntil.thenCompose(until -> until + SKEW_MILLIS > System.currentTimeMillis()
+                ? CompletableFuture.completedFuture(HELD_ELSEWHERE)
+                : take(at, Long.MAX_VALUE))
+            .whenCompleteAsync((code, ex) -> {
+                if (ex == null && code == 200) {
+                    if (result.isDone()) {
+                        // Cancelled while the request was in flight.
+                        delete(at);
+                        return;
+                    }
+                    acquireDuration.labels(name).observeSince(start);
+                    final long current = holdLock(name);
+                    // The caller only hears once the listener has.
+                    tell(LockListener::lockAcquired).thenRunAsync(() -> {
+                        if (!result.complete(true) && letGo(current, false)) {
+                            // Cancelled just now, after all.
+                            delete(at);
+                        }
+                    }, renewer.executor());
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    result.complete(false);
+                    return;
+                }
+                if (ex == null && code == HELD_ELSEWHERE) {
+                    // Its holder moves it to the new server at its next renewal.
+                    renewer.schedule(() -> acquire(result, deadline, start), Math.min(MOVE_POLL_MILLIS, remaining));
+                    return;
+                }
+                if (ex == null && code == 409) {
+                    // Someone else holds it, block on the server until the lock
+                    // changes hands or expires rather than polling.
+                    waitLock(at, Math.min(WAIT_MILLIS, remaining)).whenComplete((c, e) -> {
+                        if (e == null && (c == 429 || c == 503)) {
+                            retry(result, deadline, start, remaining);
+                        } else if (e == null) {
+                            acquire(result, deadline, start);
+                        } else {
+                            Log.error("Failed to wait for " + name, e);
+                            retry(result, deadline, start, remaining);
+                        }
+                    });
+                    return;
+                }
+                if (ex != null) {
+                    Log.error("Failed to acquire " + name, ex);
+                } else {
+                    Log.info("Unexpected status acquiring " + name + ": " + code);
+                }
+                retry(result, deadline, start, remaining);
+            }, renewer.executor());
+    }
+
+    // Backs off for RETRY_MILLIS, or for as long as an overloaded server asked
+    // plus up to half again, so turned away contenders don't all come back at once.
+    private void retry(final CompletableFuture<Boolean> result, final long deadline, final long start, long remaining) {
+        long after = retryAfter;
+        long delay = after > 0 ? after + ThreadLocalRandom.current().nextLong(after / 2 + 1) : RETRY_MILLIS;
+        renewer.schedule(() -> acquire(result, deadline, start), Math.min(delay, remaining));
+    }
+
+    // A 304 means the lock is still as we last read it.
+    private CompletableFuture<Integer> getLock(String at, long until) {
+        return send(conditional(Unirest.get(at + "/locks/" + name)
+            .header("accept", "application/json")), until);
+    }
+
+    // Sends the version we last read as a validator, so the server can answer
+    // with a 304 and no body if the lock hasn't changed.
+    private HttpRequest conditional(HttpRequest request) {
+        String version = resourceVersion;
+        if (version != null) {
+            request.header("If-None-Match", "\"" + version + "\"");
+        }
+        return request;
+    }
+
+    private CompletableFuture<Integer> updateLock(String at, long until) {
+        HttpRequest request = Unirest.put(at + "/locks/" + name)
+            .header("accept", "application/json");
+        if (holder != null) {
+            request.queryString("holder", holder)
+                .queryString("mode", exclusive ? "exclusive" : "shared")
+                .queryString("limit", limit);
+        }
+        return send(request, until);
+    }
+
+    // Takes or renews the lock on a server. A holder's PUT is a single
+    // compare-and-swap on the server; a plain lock is read first, as the
+    // server only renews a lock we read as ours. Fails with a
+    // TimeoutException if there's no answer by until.
+    private CompletableFuture<Integer> take(String at, long until) {
+        if (holder != null) {
+            return updateLock(at, until);
+        }
+        return getLock(at, until).thenCompose(code -> code == 404 || code == 200 || code == 304
+            ? updateLock(at, until)
+            : CompletableFuture.completedFuture(code));
+    }
+
+    // Also conditional, so a wait that times out with no change has no body.
+    private CompletableFuture<Integer> waitLock(String at, long waitMillis) {
+        return send(conditional(Unirest.get(at + "/locks/" + name)
+            .header("accept", "application/json")
+            .queryString("wait", waitMillis)
+            .queryString("resourceVersion", resourceVersion == null ? "" : resourceVersion)), Long.MAX_VALUE);
+    }
+
+    // Renews the given hold of the lock. A plain lock is read first, and if
+    // it was let go of meanwhile the PUT isn't sent, so as not to take it
+    // back after its release.
+    private CompletableFuture<Integer> renewLock(final long current, long until) {
+        final String at = endpoint;
+        if (holder != null) {
+            return updateLock(at, until);
+        }
+        return getLock(at, until).thenCompose(code -> {
+            if (lease.get() != current) {
+                return CompletableFuture.completedFuture(LET_GO);
+            }
+            return code == 200 || code == 304
+                ? updateLock(at, until)
+                : CompletableFuture.completedFuture(code);
+        });
+    }
+
+    // Completes with the expiry of the lock on another server, 0 if it isn't
+    // there, without touching our own state. For a counted or shared lock, the
+    // latest expiry of its holders. If the server can't tell us, it may still
+    // hold the lock, so until the lock would have expired had its holder not
+    // moved since the server stopped being routed to at changedAt.
+    private CompletableFuture<Long> heldOn(String at, long changedAt) {
+        final CompletableFuture<Long> f = new CompletableFuture<>();
+        final long unknown = changedAt + (ttl > 0 ? ttl : LockRouter.SETTLE_MILLIS);
+        Unirest.get(at + "/locks/" + name).header("accept", "application/json").asJsonAsync(new Callback<JsonNode>() {
+            public void completed(HttpResponse<JsonNode> response) {
+                if (response.getStatus() == 404) {
+                    f.complete(0L);
+                    return;
+                }
+                JsonNode body = response.getBody();
+                JSONObject spec = response.getStatus() != 200 || body == null || body.isArray()
+                    ? null : body.getObject().optJSONObject("spec");
+                if (spec == null) {
+                    Log.info("Can't tell if " + name + " is still held on " + at + ": " + response.getStatus());
+                    f.complete(unknown);
+                    return;
+                }
+                try {
+                    if (spec.has("holders")) {
+                        long latest = 0;
+                        JSONArray holders = spec.getJSONArray("holders");
+                        for (int i = 0; i < holders.length(); i++) {
+                            latest = Math.max(latest, DateTime.parse(holders.getJSONObject(i).getString("expiry")).getMillis());
+                        }
+                        f.complete(latest);
+                        return;
+                    }
+                    f.complete(spec.has("expiry") ? DateTime.parse(spec.getString("expiry")).getMillis() : 0L);
+                } catch (RuntimeException ex) {
+                    Log.error("Failed to read " + name + " on " + at, ex);
+                    f.complete(unknown);
+                }
+            }
+
+            public void failed(UnirestException ex) {
+                Log.info("Can't tell if " + name + " is still held on " + at + ": " + ex.getMessage());
+                f.complete(unknown);
+            }
+
+            public void cancelled() {
+                f.complete(unknown);
+            }
+        });
+        return f;
+    }
+
+    // As delete(), but only once the last renewal has finished, so that a
+    // renewal still in flight can't take the lock back after its release.
+    private CompletableFuture<Void> deleteAfterRenewal(final String at) {
+        return renewing.handle((code, ex) -> null).thenCompose(done -> delete(at));
+    }
+
+    // Tells the server we are done with the lock. Failures are only logged,
+    // the lock will still expire on its own.
+    private CompletableFuture<Void> delete(String at) {
+        final CompletableFuture<Void> f = new CompletableFuture<>();
+        HttpRequest request = Unirest.delete(at + "/locks/" + name);
+        if (holder != null) {
+            request.queryString("holder", holder);
+        }
+        request.asStringAsync(new Callback<String>() {
+            public void completed(HttpResponse<String> response) {
+                int code = response.getStatus();
+                if (code != 204 && code != 404) {
+                    Log.info("Unexpected status releasing " + name + ": " + code);
+                }
+                f.complete(null);
+            }
+
+            public void failed(UnirestException ex) {
+                Log.error("Failed to release " + name, ex);
+                f.complete(null);
+            }
+
+            public void cancelled() {
+                f.complete(null);
+            }
+        });
+        return f;
+    }
+
+    // Sends the request on the async client, completing with the status code.
+    // If there's no answer by until (epoch millis, MAX_VALUE for no limit) the
+    // request is abandoned and the future fails with a TimeoutException.
+    private CompletableFuture<Integer> send(HttpRequest request, long until) {
+        final CompletableFuture<Integer> f = new CompletableFuture<>();
+        final Future<HttpResponse<JsonNode>> pending = request.asJsonAsync(new Callback<JsonNode>() {
+            public void completed(HttpResponse<JsonNode> response) {
+                recordVersion(response);
+                retryAfter = retryAfter(response);
+                f.complete(response.getStatus());
+            }
+
+            public void failed(UnirestException ex) {
+                f.completeExceptionally(new IOException(ex));
+            }
+
+            public void cancelled() {
+                f.cancel(false);
+            }
+        });
+        if (until != Long.MAX_VALUE) {
+            renewer.schedule(() -> {
+                if (f.completeExceptionally(new TimeoutException("No answer for " + name + " in time"))) {
+                    pending.cancel(true);
+                }
+            }, until - System.currentTimeMillis());
+        }
+        return f;
+    }
+
+    // The Retry-After of a 429 or 503 in millis, 0 if there isn't one. Only the
+    // delay in seconds form is understood.
+    static long retryAfter(HttpResponse<?> response) {
+        int code = response.getStatus();
+        if (code != 429 && code != 503) {
+            return 0;
+        }
+        for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Retry-After") && !header.getValue().isEmpty()) {
+                try {
+                    return Math.max(0, Long.parseLong(header.getValue().get(0).trim()) * 1000);
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void recordVersion(HttpResponse<JsonNode> response) {
+        JsonNode body = response.getBody();
+        if (body == null || body.isArray()) {
+            return;
+        }
+        JSONObject metadata = body.getObject().optJSONObject("metadata");
+        if (metadata != null) {
+            resourceVersion = metadata.optString("resourceVersion", null);
+        }
+        JSONObject spec = body.getObject().optJSONObject("spec");
+        if (spec != null && holder != null) {
+            // Our own expiry, if we are one of the holders.
+            JSONArray holders = spec.optJSONArray("holders");
+            for (int i = 0; holders != null && i < holders.length(); i++) {
+                JSONObject h = holders.getJSONObject(i);
+                if (holder.equals(h.optString("id"))) {
+                    expiry = DateTime.parse(h.getString("expiry")).getMillis();
+                }
+            }
+        } else if (spec != null && spec.has("expiry")) {
+            expiry = DateTime.parse(spec.getString("expiry")).getMillis();
+        }
+    }
+
+    // Starts renewing the lock, returning the new hold's lease.
+    private long holdLock(final String name) {
+        running = true;
+        final long current = lease.incrementAndGet();
+        acquired.labels(name).inc();
+        // The lock was just written, so the time to its expiry is about the ttl.
+        ttl = expiry - System.currentTimeMillis();
+        scheduleRenewal(current, 0);
+        watchExpiry(current);
+        return current;
+    }
+
+    // The time by which a renewal has to have reached the server, by our clock.
+    private long deadline() {
+        return expiry - SKEW_MILLIS - rtt;
+    }
+
+    // Lets go of the hold once its deadline passes without a successful
+    // renewal, without waiting for one that is still in flight. Follows the
+    // deadline as renewals move it. Runs up to a coalescing slot after the
+    // deadline, well inside SKEW_MILLIS of the actual expiry.
+    private void watchExpiry(final long current) {
+        renewer.schedule(() -> {
+            if (lease.get() != current) {
+                return;
+            }
+            if (System.currentTimeMillis() < deadline()) {
+                watchExpiry(current);
+                return;
+            }
+            Log.info("Lock " + name + " expired before it could be renewed");
+            lose(current);
+        }, deadline() - System.currentTimeMillis() + LockRenewer.COALESCE_MILLIS);
+    }
+
+    // Schedules the next renewal from the expiry the server last sent. The
+    // server only extends a lock in the second half of its ttl, so a renewal
+    // aims for just after that point. After failures it backs off with jitter,
+    // but always tries again before the deadline, and sooner the closer it is.
+    private void scheduleRenewal(final long current, final int failures) {
+        long now = System.currentTimeMillis();
+        long remaining = deadline() - now;
+        long delay;
+        // This is only for testing.
+        if (flaky && rand.nextBoolean()) {
+            delay = 50 * 1000;
+        } else if (failures == 0) {
+            delay = ttl > 0 ? expiry - ttl / 2 + SKEW_MILLIS + rtt - now : remaining / 2;
+            delay = Math.min(delay, remaining * 3 / 4);
+            delay -= (long) (ThreadLocalRandom.current().nextDouble() * JITTER * delay);
+        } else {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(failures - 1, 10));
+            delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            // At least as long as an overloaded server asked, if there is time.
+            delay = Math.min(Math.max(delay, retryAfter), remaining / 2);
+        }
+        renewer.schedule(() -> renew(current, failures), Math.max(MIN_RENEW_MILLIS, delay));
+    }
+
+    private void renew(final long current, final int failures) {
+        if (lease.get() != current) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final long previousExpiry = expiry;
+        renewalSlack.labels(name).observe((previousExpiry - start) / 1000.0);
+        // If the lock's route has changed, take it on the new server and then
+        // let it go on the old one. A retry after a failed move renews in place.
+        final String from = endpoint;
+        final String to = router.route(name);
+        final boolean moving = failures == 0 && to != null && !to.equals(from);
+        final JfrEvent event = renewalEvent.begin();
+        // An answer after the deadline is no use, the watchdog has let go by then.
+        final long until = deadline();
+        CompletableFuture<Integer> renewal = moving ? take(to, until) : renewLock(current, until);
+        renewing = renewal;
+        renewal.whenCompleteAsync((code, ex) -> {
+            event.set(0, name).set(1, moving ? to : from).set(2, ex == null ? code : -1)
+                .set(3, previousExpiry - start).set(4, moving).set(5, failures).commit();
+            if (lease.get() != current) {
+                if (moving && ex == null && code == 200) {
+                    // Let go of while it was being taken on the new server,
+                    // the release only went to the old one.
+                    delete(to);
+                }
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (ex == null && code == 200) {
+                if (moving) {
+                    Log.info("Moved lock " + name + " from " + from + " to " + to);
+                    endpoint = to;
+                    delete(from);
+                }
+                // A renewal is a GET and a PUT.
+                rtt = (rtt * 7 + (now - start) / 2) / 8;
+                if (expiry > previousExpiry || moving) {
+                    ttl = expiry - start;
+                }
+                scheduleRenewal(current, 0);
+                return;
+            }
+            if (ex != null || code == 429 || code >= 500) {
+                if (ex != null) {
+                    Log.error("Failed to renew " + name, ex);
+                } else {
+                    Log.info("Unexpected status renewing " + name + ": " + code);
+                }
+                if (now < deadline()) {
+                    scheduleRenewal(current, failures + 1);
+                    return;
+                }
+                Log.info("Lock " + name + " expired before it could be renewed");
+            } else {
+                Log.info("Lost lock " + name + ": " + code);
+                if (moving) {
+                    // Someone else has it on the new server, stop holding it up on the old one.
+                    delete(from);
+                }
+            }
+            lose(current);
+        }, renewer.executor());
+    }
+
+    // The lock was lost rather than let go of. Without a listener to tell,
+    // the process can't carry on as if it still held it.
+    private void lose(long current) {
+        if (listener == null) {
+            System.exit(0);
+        }
+        letGo(current, false);
+    }
+
+    // Lets go of the current hold of the lock, returns false if it is not held.
+    // For unlock() and release(): the listener is told on the caller's thread,
+    // before they return, as a listener may synchronize on the lock like the
+    // caller does (see Election).
+    private boolean letGo() {
+        return running && letGo(lease.get(), true);
+    }
+
+    // Lets go of the given hold of the lock, returns false if it was already
+    // let go. Unless inline, the listener is told on the listener pool.
+    private boolean letGo(long current, boolean inline) {
+        if (!lease.compareAndSet(current, current + 1)) {
+            return false;
+        }
+        running = false;
+        lost.labels(name).inc();
+        if (inline && listener != null) {
+            listener.lockLost();
+        } else {
+            tell(LockListener::lockLost);
+        }
+        return true;
+    }
+
+    // Runs a listener callback on the renewer's listener pool, after any made
+    // before it, so a slow listener doesn't hold up renewals of other locks.
+    // Completes once it, and every callback before it, has run.
+    private CompletableFuture<Void> tell(final Consumer<LockListener> callback) {
+        final LockListener l = listener;
+        synchronized (callbackLock) {
+            if (l != null) {
+                callbacks = renewer.callListener(callbacks, () -> callback.accept(l));
+            }
+            return callbacks;
+        }
+    }
 }
\ No newline at end of file
@@ -1,6 +1,6 @@
-package io.metaparticle;
-
-public interface LockListener {
-    public void lockAcquired();
-    public void lockLost();
+package io.metaparticle;
+
+public interface LockListener {
+    public void lockAcquired();
+    public void lockLost();
 }
\ No newline at end of file
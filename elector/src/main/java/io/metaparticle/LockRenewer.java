@@ -0,0 +1,106 @@
+package io.metaparticle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the renewals for every held Lock in the JVM from one timer thread and a
+// small worker pool, instead of a maintainer thread per lock. Wakeups that fall
+// into the same COALESCE_MILLIS slot share a single timer task. Listener
+// callbacks run on a pool of their own, so a listener that blocks doesn't
+// hold up everyone else's renewals.
+class LockRenewer {
+    // Renewals are rounded down (i.e. made earlier) to a multiple of this.
+    static final long COALESCE_MILLIS = 100;
+
+    private static final LockRenewer instance =
+        new LockRenewer(Integer.getInteger("io.metaparticle.lock.renewerThreads", 2));
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final ExecutorService listeners;
+    // Pending renewals, keyed by the slot they fire in.
+    private final Map<Long, List<Runnable>> slots;
+
+    static LockRenewer getInstance() {
+        return instance;
+    }
+
+    LockRenewer(int threads) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("lock-renewer-timer"));
+        this.workers = Executors.newFixedThreadPool(threads, daemonThreads("lock-renewer"));
+        this.listeners = Executors.newCachedThreadPool(daemonThreads("lock-listener"));
+        this.slots = new HashMap<>();
+    }
+
+    // The worker pool, for work that should not run on an HTTP client thread.
+    Executor executor() {
+        return workers;
+    }
+
+    // Runs callback on a listener thread once previous has completed, so
+    // callbacks chained this way run one at a time and in order. What it
+    // throws is logged, and doesn't stop the ones after it.
+    CompletableFuture<Void> callListener(CompletableFuture<Void> previous, final Runnable callback) {
+        return previous.thenRunAsync(() -> {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                Log.error("Listener failed", ex);
+            }
+        }, listeners);
+    }
+
+    // Runs task on a worker thread in roughly delayMillis.
+    void schedule(Runnable task, long delayMillis) {
+        long now = System.currentTimeMillis();
+        final long slot = (now + Math.max(0, delayMillis)) / COALESCE_MILLIS * COALESCE_MILLIS;
+        boolean first = false;
+        synchronized (slots) {
+            List<Runnable> due = slots.get(slot);
+            if (due == null) {
+                due = new ArrayList<>();
+                slots.put(slot, due);
+                first = true;
+            }
+            due.add(task);
+        }
+        if (first) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    fire(slot);
+                }
+            }, slot - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void fire(long slot) {
+        List<Runnable> due;
+        synchronized (slots) {
+            due = slots.remove(slot);
+        }
+        for (Runnable task : due) {
+            workers.execute(task);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,219 @@
+package io.metaparticle;
+
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.models.V1EndpointAddress;
+import io.kubernetes.client.models.V1EndpointSubset;
+import io.kubernetes.client.models.V1Endpoints;
+import io.kubernetes.client.util.Config;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Spreads locks over several LockServers by consistent hashing of their
+// names, so the lock tier can be scaled out and adding or removing a server
+// only moves a small share of the locks. The servers come from an
+// EndpointSource that is polled for changes: a static list, the addresses a
+// DNS name resolves to, or the ready endpoints of a Kubernetes service.
+//
+// Each server keeps its own locks, so a lock whose route changes has to be
+// moved over. A Lock holds on to the server it acquired on and moves at its
+// next renewal, taking the lock on the new server before releasing it on the
+// old one. For SETTLE_MILLIS after a change, contenders for a moved lock
+// first wait for it to be free on every server it was routed to since, so
+// that several changes in quick succession don't lose track of a holder
+// that hasn't moved yet. A server that can't be asked counts as holding the
+// lock until it would have expired. While clients have different views of
+// the ring (for up to one refresh) one that hasn't seen the change can still
+// take a moved lock on its old server.
+//
+// Every client contending for a lock is routed to the same server, so a
+// routed Lock can't take it as that server's own, as a Lock given a single
+// server does. It takes it as an exclusive holder (see Semaphore) with an id
+// of its own, and only one client holds it at a time.
+public class LockRouter {
+    public interface EndpointSource {
+        // The base URIs of the LockServers, e.g. http://10.0.0.1:13131.
+        List<String> endpoints() throws IOException;
+    }
+
+    private static final int VNODES = 128;
+    private static final long REFRESH_MILLIS = 10 * 1000;
+    // Long enough for holders to renew, and so move, a couple of times.
+    static final long SETTLE_MILLIS = Long.getLong("io.metaparticle.router.settleMillis", 60 * 1000);
+
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lock-router");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // A ring that was in use until replacedAt.
+    private static class Retired {
+        final HashRing ring;
+        final long replacedAt;
+
+        Retired(HashRing ring, long replacedAt) {
+            this.ring = ring;
+            this.replacedAt = replacedAt;
+        }
+    }
+
+    private static class Ring {
+        final HashRing current;
+        // The rings replaced in the last SETTLE_MILLIS, newest first.
+        final List<Retired> retired;
+
+        Ring(HashRing current, List<Retired> retired) {
+            this.current = current;
+            this.retired = retired;
+        }
+    }
+
+    private final EndpointSource source;
+    private volatile Ring ring = new Ring(new HashRing(Collections.<String>emptyList(), VNODES), Collections.<Retired>emptyList());
+    private ScheduledFuture<?> refreshing;
+
+    // Reads the endpoints from source now and then every refreshMillis, or
+    // never again if refreshMillis is 0.
+    public LockRouter(EndpointSource source, long refreshMillis) {
+        this.source = source;
+        refresh();
+        if (refreshMillis > 0) {
+            refreshing = refresher.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static LockRouter of(String... endpoints) {
+        final List<String> list = Arrays.asList(endpoints);
+        return new LockRouter(() -> list, 0);
+    }
+
+    // Every address host resolves to, on port.
+    public static LockRouter dns(final String host, final int port) {
+        return new LockRouter(() -> {
+            List<String> endpoints = new ArrayList<>();
+            for (InetAddress address : InetAddress.getAllByName(host)) {
+                String ip = address.getHostAddress();
+                endpoints.add("http://" + (address instanceof Inet6Address ? "[" + ip + "]" : ip) + ":" + port);
+            }
+            return endpoints;
+        }, REFRESH_MILLIS);
+    }
+
+    // The ready endpoints of a Kubernetes service, on its first port.
+    public static LockRouter kubernetes(String namespace, String service) throws IOException {
+        return kubernetes(Config.defaultClient(), namespace, service);
+    }
+
+    public static LockRouter kubernetes(ApiClient client, final String namespace, final String service) {
+        final CoreV1Api api = new CoreV1Api(client);
+        return new LockRouter(() -> {
+            V1Endpoints endpoints;
+            try {
+                endpoints = api.readNamespacedEndpoints(service, namespace, null, null, null);
+            } catch (ApiException ex) {
+                throw new IOException("Failed to read endpoints of " + namespace + "/" + service + ": " + ex.getCode(), ex);
+            }
+            List<String> result = new ArrayList<>();
+            if (endpoints.getSubsets() != null) {
+                for (V1EndpointSubset subset : endpoints.getSubsets()) {
+                    if (subset.getAddresses() == null || subset.getPorts() == null || subset.getPorts().isEmpty()) {
+                        continue;
+                    }
+                    int port = subset.getPorts().get(0).getPort();
+                    for (V1EndpointAddress address : subset.getAddresses()) {
+                        result.add("http://" + address.getIp() + ":" + port);
+                    }
+                }
+            }
+            return result;
+        }, REFRESH_MILLIS);
+    }
+
+    // Stops polling the source.
+    public synchronized void close() {
+        if (refreshing != null) {
+            refreshing.cancel(false);
+        }
+    }
+
+    public List<String> getEndpoints() {
+        return ring.current.endpoints();
+    }
+
+    // The base URI of the server for a lock, or null if there are none.
+    public String route(String name) {
+        return ring.current.route(name);
+    }
+
+    // Every other server the lock was routed to in the last SETTLE_MILLIS,
+    // with when it stopped being routed there. Empty if none.
+    Map<String, Long> previousRoutes(String name) {
+        Ring r = ring;
+        String current = r.current.route(name);
+        long now = System.currentTimeMillis();
+        Map<String, Long> routes = new LinkedHashMap<>();
+        for (Retired retired : r.retired) {
+            if (now - retired.replacedAt > SETTLE_MILLIS) {
+                break;
+            }
+            String previous = retired.ring.route(name);
+            if (previous != null && !previous.equals(current) && !routes.containsKey(previous)) {
+                routes.put(previous, retired.replacedAt);
+            }
+        }
+        return routes;
+    }
+
+    private void refresh() {
+        List<String> endpoints;
+        try {
+            endpoints = source.endpoints();
+        } catch (IOException | RuntimeException ex) {
+            Log.error("Failed to refresh lock servers", ex);
+            return;
+        }
+        update(endpoints);
+    }
+
+    synchronized void update(List<String> endpoints) {
+        Ring r = ring;
+        if (endpoints.isEmpty() && !r.current.endpoints().isEmpty()) {
+            // More likely every server is restarting than gone for good,
+            // keep routing to them until some come back.
+            Log.info("No lock servers found, keeping " + r.current.endpoints());
+            return;
+        }
+        HashRing next = new HashRing(endpoints, VNODES);
+        if (next.endpoints().equals(r.current.endpoints())) {
+            return;
+        }
+        if (!r.current.endpoints().isEmpty()) {
+            Log.info("Lock servers changed from " + r.current.endpoints() + " to " + next.endpoints());
+        }
+        long now = System.currentTimeMillis();
+        List<Retired> retired = new ArrayList<>();
+        if (!r.current.endpoints().isEmpty()) {
+            retired.add(new Retired(r.current, now));
+        }
+        for (Retired old : r.retired) {
+            if (now - old.replacedAt <= SETTLE_MILLIS) {
+                retired.add(old);
+            }
+        }
+        ring = new Ring(next, retired);
+    }
+}
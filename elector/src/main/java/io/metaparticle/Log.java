@@ -0,0 +1,118 @@
+package io.metaparticle;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// A logger that never blocks the caller: messages are queued and written to
+// stdout/stderr by a background thread, and dropped if the queue is full. The
+// level comes from the io.metaparticle.log system property or the
+// METAPARTICLE_LOG environment variable (off, info or debug) and defaults to info.
+// Guard anything expensive to build with isDebug()/isInfo().
+public final class Log {
+    public enum Level { OFF, INFO, DEBUG }
+
+    private static class Entry {
+        final String msg;
+        final Throwable ex;
+
+        Entry(String msg, Throwable ex) {
+            this.msg = msg;
+            this.ex = ex;
+        }
+    }
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(8192);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = parseLevel(
+        System.getProperty("io.metaparticle.log", System.getenv("METAPARTICLE_LOG")));
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        write(queue.take());
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }, "metaparticle-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Don't lose whatever is queued when the process exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                Entry e;
+                while ((e = queue.poll()) != null) {
+                    write(e);
+                }
+            }
+        }));
+    }
+
+    private Log() {}
+
+    private static Level parseLevel(String value) {
+        if (value == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return Level.INFO;
+        }
+    }
+
+    private static void write(Entry e) {
+        if (e.ex == null) {
+            System.out.println(e.msg);
+        } else {
+            System.err.println(e.msg);
+            e.ex.printStackTrace();
+        }
+    }
+
+    private static void enqueue(String msg, Throwable ex) {
+        if (!queue.offer(new Entry(msg, ex))) {
+            dropped.increment();
+        }
+    }
+
+    public static void setLevel(Level l) {
+        level = l;
+    }
+
+    public static boolean isInfo() {
+        return level.compareTo(Level.INFO) >= 0;
+    }
+
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    // The number of messages dropped because the queue was full.
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void info(String msg) {
+        if (isInfo()) {
+            enqueue(msg, null);
+        }
+    }
+
+    public static void debug(String msg) {
+        if (isDebug()) {
+            enqueue(msg, null);
+        }
+    }
+
+    // Errors are logged unless logging is off.
+    public static void error(String msg, Throwable ex) {
+        if (isInfo()) {
+            enqueue(msg, ex);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package io.metaparticle;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import org.joda.time.DateTime;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Spreads partitions 0..N-1 of a group over the members of the group, each
+// partition owned by exactly one member through a lock named
+// <group>-partition-<n>. Members find each other through member slot locks
+// named <group>-member-<n>, and with M members each takes N/M partitions, the
+// first N%M by slot taking one more.
+//
+// Each tick renews everything the member holds and reads the group in one
+// batch request. Only when the member holds more or less than its share is
+// a second request made, to release or claim just the difference. Requests
+// that hold on to partitions time out at the deadline, when the first of our
+// locks expires, and a watchdog drops every partition once the deadline
+// passes without a renewal, whether or not a tick is still in flight.
+//
+// Ownership of a lock is per LockServer, so each member needs its own server.
+public class PartitionBalancer {
+    private static final int DEFAULT_MAX_MEMBERS = 64;
+    // Tick period until the server's ttl is known.
+    private static final long DEFAULT_TICK_MILLIS = 1000;
+    private static final long MIN_TICK_MILLIS = 100;
+    private static final long BACKOFF_MILLIS = 250;
+    private static final long SKEW_MILLIS = Long.getLong("io.metaparticle.lock.skewMillis", 500);
+
+    private final LockRenewer renewer = LockRenewer.getInstance();
+    private final String group;
+    private final int partitions;
+    private final String baseUri;
+    private final PartitionListener listener;
+    private int maxMembers = DEFAULT_MAX_MEMBERS;
+
+    // All of the below are guarded by this.
+    private boolean running;
+    // Incremented by start() so that ticks from before a stop() do nothing.
+    private long generation;
+    // Our member slot, or -1 if we don't hold one.
+    private int slot = -1;
+    private final TreeSet<Integer> owned = new TreeSet<>();
+    // How many partitions we should hold, or -1 if not known yet.
+    private int target = -1;
+    // The lock owner name of our server, learned from the locks we hold.
+    private String self;
+    // The server's ttl, estimated from the expiry of locks it just wrote.
+    private long ttl;
+    // When the first of the locks we hold expires, by our clock.
+    private long deadline;
+    private int failures;
+    // How long the server last asked us to back off for, see Lock.retryAfter().
+    private volatile long retryAfter;
+    // The last listener callback, each one is chained after the one before.
+    private CompletableFuture<Void> callbacks = CompletableFuture.completedFuture(null);
+
+    public PartitionBalancer(String group, int partitions, PartitionListener listener) {
+        this(group, partitions, "http://localhost:13131", listener);
+    }
+
+    public PartitionBalancer(String group, int partitions, String baseUri, PartitionListener listener) {
+        this.group = group;
+        this.partitions = partitions;
+        this.baseUri = baseUri;
+        this.listener = listener;
+    }
+
+    // The most members the group can have. Every member of a group must use
+    // the same value; members beyond it wait for a slot and own nothing.
+    public synchronized void setMaxMembers(int maxMembers) {
+        this.maxMembers = maxMembers;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Already started.");
+        }
+        running = true;
+        final long current = ++generation;
+        renewer.schedule(() -> tick(current), 0);
+        watchExpiry(current);
+    }
+
+    // Gives up every partition, telling the listener, and releases them on the
+    // server so that the other members can take them straight away. Completes
+    // once both are done.
+    public CompletableFuture<Void> stop() {
+        List<Integer> lost;
+        JSONArray release = new JSONArray();
+        synchronized (this) {
+            if (!running) {
+                return CompletableFuture.completedFuture(null);
+            }
+            running = false;
+            lost = new ArrayList<>(owned);
+            for (int p : owned) {
+                release.put(partitionName(p));
+            }
+            if (slot >= 0) {
+                release.put(memberName(slot));
+            }
+            owned.clear();
+            slot = -1;
+            target = -1;
+        }
+        CompletableFuture<Void> told = notifyLost(lost);
+        return batch(new JSONObject().put("release", release), Long.MAX_VALUE).handle((resp, ex) -> {
+            if (ex != null) {
+                Log.error("Failed to release partitions of " + group, ex);
+            }
+            return (Void) null;
+        }).thenCombine(told, (released, done) -> null);
+    }
+
+    public synchronized List<Integer> getOwned() {
+        return new ArrayList<>(owned);
+    }
+
+    private String memberName(int i) {
+        return group + "-member-" + i;
+    }
+
+    private String partitionName(int p) {
+        return group + "-partition-" + p;
+    }
+
+    // The number in a member or partition lock name, or -1 if it isn't one.
+    private static int index(String name, String prefix) {
+        return name.startsWith(prefix) ? Integer.parseInt(name.substring(prefix.length())) : -1;
+    }
+
+    private void tick(final long current) {
+        JSONObject req = new JSONObject();
+        long until;
+        synchronized (this) {
+            if (!running || generation != current) {
+                return;
+            }
+            until = deadline == 0 ? Long.MAX_VALUE : deadline;
+            JSONArray names = new JSONArray();
+            if (slot >= 0) {
+                names.put(memberName(slot));
+            }
+            for (int p : owned) {
+                names.put(partitionName(p));
+            }
+            JSONArray read = new JSONArray();
+            for (int i = 0; i < maxMembers; i++) {
+                if (i != slot) {
+                    read.put(memberName(i));
+                }
+            }
+            // The rest of the partitions only need reading if we're short.
+            if (target < 0 || owned.size() < target) {
+                for (int p = 0; p < partitions; p++) {
+                    if (!owned.contains(p)) {
+                        read.put(partitionName(p));
+                    }
+                }
+            }
+            req.put("names", names).put("read", read);
+        }
+        final long start = System.currentTimeMillis();
+        batch(req, until).whenCompleteAsync((resp, ex) -> {
+            if (ex != null) {
+                failed(current, ex);
+            } else {
+                rebalance(current, resp, start);
+            }
+        }, renewer.executor());
+    }
+
+    // Works out our share from the tick's response, and releases or claims
+    // partitions to get to it.
+    private void rebalance(final long current, JSONObject resp, long start) {
+        List<Integer> lost = new ArrayList<>();
+        JSONArray claim = new JSONArray();
+        JSONArray release = new JSONArray();
+        long until;
+        synchronized (this) {
+            if (!running || generation != current) {
+                return;
+            }
+            failures = 0;
+            long now = System.currentTimeMillis();
+            long earliest = Long.MAX_VALUE;
+            JSONArray results = resp.optJSONArray("results");
+            for (int i = 0; results != null && i < results.length(); i++) {
+                JSONObject r = results.getJSONObject(i);
+                String name = r.getString("name");
+                int code = r.getInt("code");
+                if (code == 200) {
+                    self = owner(r);
+                    earliest = Math.min(earliest, expiry(r));
+                } else if (code == 409 || code == 404) {
+                    if (slot >= 0 && name.equals(memberName(slot))) {
+                        slot = -1;
+                    } else {
+                        int p = index(name, group + "-partition-");
+                        if (p >= 0 && owned.remove(p)) {
+                            lost.add(p);
+                        }
+                    }
+                }
+            }
+            deadline = earliest == Long.MAX_VALUE ? 0 : earliest - SKEW_MILLIS;
+
+            List<Integer> live = new ArrayList<>();
+            if (slot >= 0) {
+                live.add(slot);
+            }
+            int freeSlot = -1;
+            List<Integer> free = new ArrayList<>();
+            JSONArray read = resp.optJSONArray("read");
+            for (int i = 0; read != null && i < read.length(); i++) {
+                JSONObject r = read.getJSONObject(i);
+                String name = r.getString("name");
+                // Locks left over from an earlier run against our server are ours to take.
+                boolean taken = r.getInt("code") == 200 && expiry(r) > now && !owner(r).equals(self);
+                int m = index(name, group + "-member-");
+                if (m >= 0) {
+                    if (taken) {
+                        live.add(m);
+                    } else if (freeSlot < 0) {
+                        freeSlot = m;
+                    }
+                    continue;
+                }
+                int p = index(name, group + "-partition-");
+                if (p >= 0 && !taken) {
+                    free.add(p);
+                }
+            }
+
+            if (slot < 0) {
+                // Not a member yet, so keep what we have until we are.
+                target = owned.size();
+                if (freeSlot >= 0) {
+                    claim.put(memberName(freeSlot));
+                }
+            } else {
+                Collections.sort(live);
+                int rank = live.indexOf(slot);
+                target = partitions / live.size() + (rank < partitions % live.size() ? 1 : 0);
+            }
+            while (owned.size() > target) {
+                int p = owned.pollLast();
+                lost.add(p);
+                release.put(partitionName(p));
+            }
+            // Members short of their share pick at random, so that they
+            // rarely race each other for the same partition.
+            Collections.shuffle(free);
+            for (int i = 0; i < free.size() && owned.size() + i < target; i++) {
+                claim.put(partitionName(free.get(i)));
+            }
+            until = deadline == 0 ? Long.MAX_VALUE : deadline;
+        }
+        notifyLost(lost);
+        if (claim.length() == 0 && release.length() == 0) {
+            scheduleTick(current);
+            return;
+        }
+        final long claimStart = System.currentTimeMillis();
+        batch(new JSONObject().put("names", claim).put("release", release), until).whenCompleteAsync((r, ex) -> {
+            if (ex != null) {
+                Log.error("Failed to rebalance partitions of " + group, ex);
+            } else {
+                claimed(current, r, claimStart);
+            }
+            scheduleTick(current);
+        }, renewer.executor());
+    }
+
+    private void claimed(long current, JSONObject resp, long start) {
+        List<Integer> acquired = new ArrayList<>();
+        JSONArray orphaned = new JSONArray();
+        synchronized (this) {
+            JSONArray results = resp.optJSONArray("results");
+            for (int i = 0; results != null && i < results.length(); i++) {
+                JSONObject r = results.getJSONObject(i);
+                if (r.getInt("code") != 200) {
+                    continue;
+                }
+                String name = r.getString("name");
+                if (!running || generation != current) {
+                    // Stopped while claiming, hand it straight back.
+                    orphaned.put(name);
+                    continue;
+                }
+                self = owner(r);
+                // A claim always writes the lock, so its expiry is a ttl away.
+                long expiry = expiry(r);
+                ttl = expiry - start;
+                deadline = deadline == 0 ? expiry - SKEW_MILLIS : Math.min(deadline, expiry - SKEW_MILLIS);
+                int m = index(name, group + "-member-");
+                if (m >= 0) {
+                    slot = m;
+                    continue;
+                }
+                int p = index(name, group + "-partition-");
+                if (p >= 0 && owned.add(p)) {
+                    acquired.add(p);
+                }
+            }
+        }
+        for (int p : acquired) {
+            tell(() -> listener.partitionAcquired(p));
+        }
+        if (orphaned.length() > 0) {
+            batch(new JSONObject().put("release", orphaned), Long.MAX_VALUE);
+        }
+    }
+
+    // The tick's request failed. Partitions are kept, and renewals retried
+    // with backoff, until the locks would have expired.
+    private void failed(long current, Throwable ex) {
+        Log.error("Failed to renew partitions of " + group, ex);
+        List<Integer> lost = new ArrayList<>();
+        synchronized (this) {
+            if (!running || generation != current) {
+                return;
+            }
+            failures++;
+            if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+                dropAll(lost);
+            }
+        }
+        notifyLost(lost);
+        scheduleTick(current);
+    }
+
+    // Drops every partition once the deadline passes without a successful
+    // renewal, without waiting for a tick that is still in flight. Follows
+    // the deadline as ticks move it, and runs up to a coalescing slot after
+    // it, well inside SKEW_MILLIS of the actual expiry.
+    private void watchExpiry(final long current) {
+        List<Integer> lost = new ArrayList<>();
+        long delay;
+        synchronized (this) {
+            if (!running || generation != current) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (deadline != 0 && now >= deadline) {
+                Log.info("Partitions of " + group + " expired before they could be renewed");
+                dropAll(lost);
+            }
+            delay = deadline == 0 ? DEFAULT_TICK_MILLIS : deadline - now + LockRenewer.COALESCE_MILLIS;
+        }
+        notifyLost(lost);
+        renewer.schedule(() -> watchExpiry(current), delay);
+    }
+
+    // Forgets every partition and our member slot, adding the partitions to lost.
+    private void dropAll(List<Integer> lost) {
+        lost.addAll(owned);
+        owned.clear();
+        slot = -1;
+        target = -1;
+        deadline = 0;
+    }
+
+    private void scheduleTick(final long current) {
+        long delay;
+        synchronized (this) {
+            delay = ttl > 0 ? ttl / 3 : DEFAULT_TICK_MILLIS;
+            if (failures > 0) {
+                delay = Math.min(delay, BACKOFF_MILLIS << Math.min(failures - 1, 10));
+                delay = Math.max(delay, retryAfter);
+            }
+            if (deadline != 0) {
+                delay = Math.min(delay, (deadline - System.currentTimeMillis()) / 2);
+            }
+        }
+        delay -= (long) (ThreadLocalRandom.current().nextDouble() * 0.1 * delay);
+        renewer.schedule(() -> tick(current), Math.max(MIN_TICK_MILLIS, delay));
+    }
+
+    // Completes once the listener has been told.
+    private CompletableFuture<Void> notifyLost(List<Integer> lost) {
+        for (int p : lost) {
+            tell(() -> listener.partitionLost(p));
+        }
+        synchronized (this) {
+            return callbacks;
+        }
+    }
+
+    // Runs a listener callback on the renewer's listener pool, after any made
+    // before it, so a slow listener doesn't hold up renewals. Completes once
+    // it has run.
+    private synchronized CompletableFuture<Void> tell(Runnable callback) {
+        callbacks = renewer.callListener(callbacks, callback);
+        return callbacks;
+    }
+
+    private static long expiry(JSONObject result) {
+        JSONObject lock = result.optJSONObject("lock");
+        JSONObject spec = lock == null ? null : lock.optJSONObject("spec");
+        if (spec == null || !spec.has("expiry")) {
+            return 0;
+        }
+        return DateTime.parse(spec.getString("expiry")).getMillis();
+    }
+
+    private static String owner(JSONObject result) {
+        JSONObject lock = result.optJSONObject("lock");
+        JSONObject spec = lock == null ? null : lock.optJSONObject("spec");
+        return spec == null ? "" : spec.optString("owner", "");
+    }
+
+    // Fails with a TimeoutException if there's no answer by until.
+    private CompletableFuture<JSONObject> batch(JSONObject body, long until) {
+        final CompletableFuture<JSONObject> f = new CompletableFuture<>();
+        final Future<HttpResponse<JsonNode>> pending = Unirest.post(baseUri + "/locks:batch")
+            .header("accept", "application/json")
+            .header("content-type", "application/json")
+            .body(body.toString())
+            .asJsonAsync(new Callback<JsonNode>() {
+                public void completed(HttpResponse<JsonNode> response) {
+                    retryAfter = Lock.retryAfter(response);
+                    if (response.getStatus() != 200) {
+                        f.completeExceptionally(new IOException("Unexpected status " + response.getStatus()));
+                    } else {
+                        f.complete(response.getBody().getObject());
+                    }
+                }
+
+                public void failed(UnirestException ex) {
+                    f.completeExceptionally(new IOException(ex));
+                }
+
+                public void cancelled() {
+                    f.cancel(false);
+                }
+            });
+        if (until != Long.MAX_VALUE) {
+            renewer.schedule(() -> {
+                if (f.completeExceptionally(new TimeoutException("No answer for " + group + " in time"))) {
+                    pending.cancel(true);
+                }
+            }, until - System.currentTimeMillis());
+        }
+        return f;
+    }
+}
@@ -0,0 +1,6 @@
+package io.metaparticle;
+
+public interface PartitionListener {
+    public void partitionAcquired(int partition);
+    public void partitionLost(int partition);
+}
@@ -0,0 +1,34 @@
+package io.metaparticle;
+
+import java.util.UUID;
+
+// A lock that any number of readers can hold together, or one writer alone.
+// Readers and writers each have their own expiry and renew on their own. A
+// steady stream of readers can keep a writer waiting, as the server doesn't
+// queue anyone.
+public class ReadWriteLock {
+    private final Lock readLock;
+    private final Lock writeLock;
+
+    public ReadWriteLock(String name) {
+        this(name, "http://localhost:13131");
+    }
+
+    public ReadWriteLock(String name, String baseUri) {
+        this(name, LockRouter.of(baseUri));
+    }
+
+    public ReadWriteLock(String name, LockRouter router) {
+        String id = UUID.randomUUID().toString();
+        this.readLock = new Lock(name, router, id + "-r", false, 0);
+        this.writeLock = new Lock(name, router, id + "-w", true, 0);
+    }
+
+    public Lock readLock() {
+        return readLock;
+    }
+
+    public Lock writeLock() {
+        return writeLock;
+    }
+}
@@ -0,0 +1,37 @@
+package io.metaparticle;
+
+import java.util.UUID;
+
+// A counted lease: a lock that up to permits holders can hold at once, for
+// limiting how many of something run together. Each holder has its own
+// expiry, renews on its own and is admitted with a single request, so a
+// free permit is taken straight away. Waiting holders block on the server
+// and are woken when a permit is released or expires.
+public class Semaphore {
+    private final String name;
+    private final int permits;
+    private final LockRouter router;
+
+    public Semaphore(String name, int permits) {
+        this(name, permits, "http://localhost:13131");
+    }
+
+    public Semaphore(String name, int permits, String baseUri) {
+        this(name, permits, LockRouter.of(baseUri));
+    }
+
+    public Semaphore(String name, int permits, LockRouter router) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+        this.name = name;
+        this.permits = permits;
+        this.router = router;
+    }
+
+    // A new holder of one permit, acquired and released like any other Lock.
+    // Every holder needs its own, as a Lock is only held once at a time.
+    public Lock permit() {
+        return new Lock(name, router, UUID.randomUUID().toString(), false, permits);
+    }
+}
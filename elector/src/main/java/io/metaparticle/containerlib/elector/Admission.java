@@ -0,0 +1,274 @@
+package io.metaparticle.containerlib.elector;
+
+import io.metaparticle.metrics.Counter;
+import io.metaparticle.metrics.MetricsRegistry;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounds how much work LockServer has in flight against its storage. Past
+// maxInFlight, requests queue by priority: renewals by the current holder
+// first, then acquisitions, then reads. When the queue is full a request
+// takes the place of the newest one queued at a lower priority, or is turned
+// away if there is none, and anything that queues for longer than
+// maxQueueMillis is turned away too. Turned away requests get a 429 telling
+// the client when to come back, rather than piling up until renewals miss
+// their deadlines.
+//
+// Each client (by remote address) may have at most maxPerClient acquisitions
+// and reads queued or in flight, so that one client's contenders can't crowd
+// out everyone else. Renewals aren't capped, they are bounded by the locks
+// the client holds.
+//
+// GETs that wait for a lock to change give up their permit while they wait,
+// as they put no load on storage, but they still hold a worker thread. So
+// they are counted separately and turned away past maxWaiting, which is kept
+// below the number of workers so that renewals always find one.
+//
+// Waits use a ReentrantLock rather than a monitor, which would pin a virtual
+// thread to its carrier while it waits.
+class Admission {
+    enum Priority { RENEW, ACQUIRE, READ }
+
+    private static final Counter rejected = MetricsRegistry.defaultRegistry.counter(
+        "lockserver_rejected_total", "Requests turned away with a 429 by admission control.", "priority");
+
+    static class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        // When the client should try again.
+        final long retryAfterMillis;
+
+        Rejected(long retryAfterMillis) {
+            super("Overloaded, retry after " + retryAfterMillis + "ms", null, false, false);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    // Held while a request runs. Closing it more than once is harmless, so it
+    // can be let go early, e.g. before a long wait.
+    class Permit implements AutoCloseable {
+        private final String client;
+        private final long start = System.nanoTime();
+        private boolean closed;
+
+        private Permit(String client) {
+            this.client = client;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release(client, System.nanoTime() - start);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Waiter {
+        final Priority priority;
+        boolean admitted;
+        boolean shed;
+
+        Waiter(Priority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final int maxPerClient;
+    private final long maxQueueMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a waiter is admitted or shed.
+    private final Condition changed = lock.newCondition();
+    // All guarded by lock.
+    private int inFlight;
+    private int queued;
+    // Indexed by Priority ordinal.
+    private final List<ArrayDeque<Waiter>> queues;
+    // Acquisitions and reads queued or in flight, by client.
+    private final HashMap<String, Integer> clients = new HashMap<>();
+    // Smoothed time a request holds its permit, for Retry-After.
+    private long serviceNanos;
+
+    private volatile int maxWaiting = Integer.MAX_VALUE;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    Admission(int maxInFlight, int maxQueued, int maxPerClient, long maxQueueMillis) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxPerClient = maxPerClient;
+        this.maxQueueMillis = maxQueueMillis;
+        queues = new ArrayList<>();
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ArrayDeque<Waiter>());
+        }
+    }
+
+    void setMaxWaiting(int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    // Counts a GET that is about to wait for its lock to change, or turns it
+    // away if maxWaiting are already waiting. Each call that returns must be
+    // matched by endWait().
+    void startWait() throws Rejected {
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejected.labels("wait").inc();
+            // A wait ends when its lock changes or it times out, neither of
+            // which we can predict, so come back soon.
+            throw new Rejected(1000);
+        }
+    }
+
+    void endWait() {
+        waiting.decrementAndGet();
+    }
+
+    // The number of requests queued for a permit.
+    int queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the request may go ahead, for up to maxQueueMillis.
+    Permit admit(Priority priority, String client) throws Rejected, InterruptedIOException {
+        lock.lock();
+        try {
+            return admitLocked(priority, client);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admitLocked(Priority priority, String client) throws Rejected, InterruptedIOException {
+        String counted = priority == Priority.RENEW ? null : client;
+        if (counted != null) {
+            int n = clients.getOrDefault(counted, 0);
+            if (n >= maxPerClient) {
+                throw reject(priority);
+            }
+            clients.put(counted, n + 1);
+        }
+        boolean admitted = false;
+        try {
+            if (inFlight < maxInFlight) {
+                inFlight++;
+            } else {
+                await(priority);
+            }
+            admitted = true;
+            return new Permit(counted);
+        } finally {
+            if (!admitted && counted != null) {
+                uncount(counted);
+            }
+        }
+    }
+
+    private void await(Priority priority) throws Rejected, InterruptedIOException {
+        if (queued >= maxQueued && !shedBelow(priority)) {
+            throw reject(priority);
+        }
+        Waiter w = new Waiter(priority);
+        queues.get(priority.ordinal()).addLast(w);
+        queued++;
+        long deadline = System.currentTimeMillis() + maxQueueMillis;
+        try {
+            while (!w.admitted && !w.shed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                changed.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if (!w.admitted) {
+                dequeue(w);
+                throw new InterruptedIOException("Interrupted waiting for admission");
+            }
+        }
+        if (!w.admitted) {
+            dequeue(w);
+            throw reject(priority);
+        }
+    }
+
+    private void dequeue(Waiter w) {
+        if (!w.shed && queues.get(w.priority.ordinal()).remove(w)) {
+            queued--;
+        }
+    }
+
+    // Turns away the newest waiter queued at a lower priority, to make room.
+    private boolean shedBelow(Priority priority) {
+        for (int p = queues.size() - 1; p > priority.ordinal(); p--) {
+            Waiter w = queues.get(p).pollLast();
+            if (w != null) {
+                w.shed = true;
+                queued--;
+                changed.signalAll();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release(String client, long nanos) {
+        serviceNanos = serviceNanos == 0 ? nanos : (serviceNanos * 7 + nanos) / 8;
+        if (client != null) {
+            uncount(client);
+        }
+        // Hand the permit straight to the first waiter, highest priority first.
+        for (ArrayDeque<Waiter> q : queues) {
+            Iterator<Waiter> it = q.iterator();
+            if (it.hasNext()) {
+                Waiter w = it.next();
+                it.remove();
+                queued--;
+                w.admitted = true;
+                changed.signalAll();
+                return;
+            }
+        }
+        inFlight--;
+    }
+
+    private void uncount(String client) {
+        int n = clients.get(client) - 1;
+        if (n == 0) {
+            clients.remove(client);
+        } else {
+            clients.put(client, n);
+        }
+    }
+
+    // About how long the work already queued will take, at least a second.
+    private Rejected reject(Priority priority) {
+        rejected.labels(priority.name().toLowerCase()).inc();
+        long millis = (queued + inFlight) * serviceNanos / Math.max(1, maxInFlight) / 1000000;
+        return new Rejected(Math.max(1000, millis));
+    }
+}
@@ -0,0 +1,35 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.annotations.SerializedName;
+
+// The outcome of one lock in a batch operation. code is an HTTP status; lock is
+// set when the operation succeeded and message when it didn't.
+public class BatchResult {
+    @SerializedName("name")
+    public String name = null;
+
+    @SerializedName("code")
+    public int code;
+
+    @SerializedName("lock")
+    public Lock lock = null;
+
+    @SerializedName("message")
+    public String msg = null;
+
+    public static BatchResult success(String name, Lock lock) {
+        BatchResult result = new BatchResult();
+        result.name = name;
+        result.code = 200;
+        result.lock = lock;
+        return result;
+    }
+
+    public static BatchResult failure(String name, int code, String msg) {
+        BatchResult result = new BatchResult();
+        result.name = name;
+        result.code = code;
+        result.msg = msg;
+        return result;
+    }
+}
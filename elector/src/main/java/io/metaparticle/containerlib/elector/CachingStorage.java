@@ -0,0 +1,285 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.JSON;
+import io.kubernetes.client.util.Watch;
+import io.metaparticle.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves reads from an in-memory copy of every Lock, kept up to date by listing
+// and then watching the locks in KubernetesStorage. Writes still go to the API
+// server, so resourceVersion conflicts are caught there, and their results are
+// folded back into the cache. Until the first list completes (and while
+// re-listing after a broken watch) reads go straight through.
+public class CachingStorage implements StorageInterface, Runnable {
+    private KubernetesStorage storage;
+    private JSON json;
+    // Guarded by lock. Waiters for a lock to change wait on changed, not on a
+    // monitor, which would pin a virtual thread to its carrier.
+    private HashMap<String, Lock> cache;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile boolean synced;
+
+    public CachingStorage(KubernetesStorage storage) {
+        this.storage = storage;
+        this.json = storage.client.getJSON();
+        this.cache = new HashMap<>();
+        Thread informer = new Thread(this, "lock-informer");
+        informer.setDaemon(true);
+        informer.start();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                String version = relist();
+                while (version != null) {
+                    version = watch(version);
+                }
+            } catch (ApiException | IOException | RuntimeException ex) {
+                Log.error("Lock informer failed, re-listing", ex);
+                synced = false;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private String relist() throws ApiException, IOException {
+        LockList list = storage.listLocks();
+        lock.lock();
+        try {
+            cache.clear();
+            for (Lock l : list.items) {
+                cache.put(l.metadata.getName(), l);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        synced = true;
+        return list.metadata.getResourceVersion();
+    }
+
+    // Applies events until the watch ends. Returns the resourceVersion to
+    // re-watch from, or null if the cache needs to be re-listed.
+    private String watch(String version) throws ApiException, IOException {
+        Watch<Lock> watch = storage.watchLocks(version);
+        try {
+            for (Watch.Response<Lock> event : watch) {
+                if (event.object == null) {
+                    // An ERROR event, e.g. 410 Gone once the version has been compacted.
+                    return null;
+                }
+                if ("DELETED".equals(event.type)) {
+                    remove(event.object.metadata.getName());
+                } else {
+                    store(event.object);
+                }
+                version = event.object.metadata.getResourceVersion();
+            }
+        } finally {
+            watch.close();
+        }
+        return version;
+    }
+
+    private void store(Lock l) {
+        String key = l.metadata.getName();
+        lock.lock();
+        try {
+            Lock curr = cache.get(key);
+            if (curr != null && isOlder(l, curr)) {
+                return;
+            }
+            cache.put(key, l);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String name) {
+        lock.lock();
+        try {
+            cache.remove(name);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Re-reads a lock after a write was rejected, so the next read doesn't hit the same conflict.
+    private void refresh(String name) throws IOException {
+        try {
+            store(storage.getLock(name));
+        } catch (ApiException ex) {
+            if (ex.getCode() == 404) {
+                remove(name);
+            }
+        }
+    }
+
+    // resourceVersions are opaque, but in practice they're etcd revisions, which
+    // only grow. If they don't parse, the newest write to arrive wins.
+    private static boolean isOlder(Lock l, Lock than) {
+        try {
+            return Long.parseLong(l.metadata.getResourceVersion())
+                < Long.parseLong(than.metadata.getResourceVersion());
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    // Callers modify the locks they are handed, so never give out the cached object.
+    private Lock copy(Lock l) {
+        return json.deserialize(json.serialize(l), Lock.class);
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException {
+        try {
+            Lock result = storage.createLock(l);
+            store(result);
+            return copy(result);
+        } catch (ApiException ex) {
+            if (ex.getCode() == 409) {
+                refresh(l.metadata.getName());
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        try {
+            Lock result = storage.updateLock(l);
+            store(result);
+            return copy(result);
+        } catch (ApiException ex) {
+            if (ex.getCode() == 409 || ex.getCode() == 404) {
+                refresh(l.metadata.getName());
+            }
+            throw ex;
+        }
+    }
+
+    // Stores the released lock straight away, like a write, rather than
+    // waiting for the watch to deliver it.
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        try {
+            store(storage.release(l));
+        } catch (ApiException ex) {
+            if (ex.getCode() == 409 || ex.getCode() == 404) {
+                refresh(l.metadata.getName());
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        if (!synced) {
+            return storage.getLock(name);
+        }
+        lock.lock();
+        try {
+            Lock l = cache.get(name);
+            if (l == null) {
+                throw new ApiException(404, "Not found");
+            }
+            return copy(l);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        if (!synced) {
+            return storage.getVersion(name);
+        }
+        lock.lock();
+        try {
+            Lock l = cache.get(name);
+            if (l == null) {
+                throw new ApiException(404, "Not found");
+            }
+            return l.metadata.getResourceVersion();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        if (!synced) {
+            return storage.waitLock(name, resourceVersion, timeoutMillis);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        lock.lock();
+        try {
+            Lock curr = cache.get(name);
+            while (curr != null && curr.metadata.getResourceVersion().equals(resourceVersion)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    changed.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + name);
+                }
+                curr = cache.get(name);
+            }
+            if (curr == null) {
+                throw new ApiException(404, "Not found");
+            }
+            return copy(curr);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        if (!synced) {
+            return storage.updateLocks(names, updater);
+        }
+        List<BatchResult> reads = new ArrayList<>(names.size());
+        lock.lock();
+        try {
+            for (String name : names) {
+                Lock l = cache.get(name);
+                reads.add(l == null
+                    ? BatchResult.failure(name, 404, "Not found")
+                    : BatchResult.success(name, copy(l)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        List<BatchResult> results = storage.applyUpdates(reads, updater);
+        for (BatchResult result : results) {
+            if (result.code == 200) {
+                store(copy(result.lock));
+            } else if (result.code == 409 || result.code == 404) {
+                refresh(result.name);
+            }
+        }
+        return results;
+    }
+}
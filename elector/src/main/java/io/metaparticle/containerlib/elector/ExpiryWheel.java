@@ -0,0 +1,159 @@
+package io.metaparticle.containerlib.elector;
+
+import io.metaparticle.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A hierarchical timing wheel. Timers due within 1024 ticks go into a
+// bucket of the inner wheel by deadline, timers due within 1024 inner
+// revolutions into a bucket of the outer wheel, and anything later onto an
+// overflow list. A single thread advances the inner wheel one tick at a time
+// and fires the timers that are due; each time the inner wheel comes round,
+// the next outer bucket is moved down into it. Scheduling is a queue append
+// and a timer is moved at most a couple of times before it fires, so the cost
+// per timer is constant however many there are. Timers can't be cancelled,
+// the handler is expected to check whether a timer still applies.
+class ExpiryWheel implements Runnable {
+    interface Handler {
+        void fire(String name, long deadline);
+    }
+
+    private static class Timer {
+        final String name;
+        final long deadline;
+        // The tick of the inner wheel the timer fires on.
+        final long due;
+        Timer next;
+
+        Timer(String name, long deadline, long due) {
+            this.name = name;
+            this.deadline = deadline;
+            this.due = due;
+        }
+    }
+
+    private static final int BITS = 10;
+
+    // Each wheel has 1 << bits buckets.
+    private final int bits;
+    private final int mask;
+    private final long tickMillis;
+    private final Timer[] inner;
+    private final Timer[] outer;
+    private Timer overflow;
+    private final Handler handler;
+    // Timers waiting to be put into buckets by the wheel thread.
+    private final ConcurrentLinkedQueue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private final long start;
+    // Only touched by the wheel thread.
+    private long tick;
+    private final Thread thread;
+
+    ExpiryWheel(long tickMillis, Handler handler) {
+        this(tickMillis, BITS, handler);
+    }
+
+    // Smaller wheels let tests reach the outer wheel and overflow list quickly.
+    ExpiryWheel(long tickMillis, int bits, Handler handler) {
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.inner = new Timer[1 << bits];
+        this.outer = new Timer[1 << bits];
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        this.start = System.currentTimeMillis();
+        thread = new Thread(this, "expiry-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the wheel thread. Timers that haven't fired yet never will.
+    void stop() {
+        thread.interrupt();
+    }
+
+    // Calls handler.fire(name, deadline) at deadline, or within a tick after it.
+    void schedule(String name, long deadline) {
+        // Round up, so that a timer never fires before its deadline.
+        long due = (Math.max(deadline, start) - start + tickMillis - 1) / tickMillis;
+        pending.add(new Timer(name, deadline, due));
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            long next = start + (tick + 1) * tickMillis;
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            if ((tick & mask) == 0) {
+                cascade();
+            }
+            Timer t;
+            while ((t = pending.poll()) != null) {
+                place(t);
+            }
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void place(Timer t) {
+        if (t.due <= tick) {
+            t.next = inner[(int) (tick & mask)];
+            inner[(int) (tick & mask)] = t;
+        } else if (t.due - tick < inner.length) {
+            t.next = inner[(int) (t.due & mask)];
+            inner[(int) (t.due & mask)] = t;
+        } else if ((t.due >> bits) - (tick >> bits) < outer.length) {
+            int ix = (int) ((t.due >> bits) & mask);
+            t.next = outer[ix];
+            outer[ix] = t;
+        } else {
+            t.next = overflow;
+            overflow = t;
+        }
+    }
+
+    // At the start of each inner revolution, moves the outer bucket for it
+    // down into the inner wheel, and once per outer revolution re-places the
+    // overflow list.
+    private void cascade() {
+        int ix = (int) ((tick >> bits) & mask);
+        Timer t = outer[ix];
+        outer[ix] = null;
+        if (ix == 0) {
+            Timer o = overflow;
+            overflow = null;
+            while (o != null) {
+                Timer next = o.next;
+                place(o);
+                o = next;
+            }
+        }
+        while (t != null) {
+            Timer next = t.next;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void expire(int ix) {
+        Timer t = inner[ix];
+        inner[ix] = null;
+        while (t != null) {
+            Timer next = t.next;
+            try {
+                handler.fire(t.name, t.deadline);
+            } catch (RuntimeException ex) {
+                Log.error("Expiry handler failed for " + t.name, ex);
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.metaparticle.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// MemoryStorage that survives a restart: every write is appended to a log in
+// dir and a write only returns once the log is on disk. The log is a series
+// of fixed size segments, each memory-mapped, so an append is a copy under a
+// lock. A flusher thread forces the current segment whenever there is
+// anything new in it, so writers that arrive while a force is running all
+// wait on the next one (group commit).
+//
+// Whenever the log moves on to a new segment, a snapshot of every live lock
+// is written in the background and the segments before it are deleted, so a
+// restart reads one snapshot and at most a couple of segments. Each lock's
+// writes are logged under its slot in MemoryStorage, so they reach the log in
+// version order and a release is never followed by an older write of the
+// same lock. A snapshot and the segments after it can overlap, so on replay
+// the highest version of each lock wins.
+//
+// Each record is its length, a CRC32, a type byte and a payload: the lock's
+// version, name and namespace and its spec's fields as length-prefixed UTF-8,
+// and the expiry as millis too, rather than JSON, so that replaying a large
+// log doesn't parse anything. Counted and shared locks follow that with their
+// limit and holders, each holder's fields the same way. Replay
+// of a segment stops at the first record that is zero or doesn't check out,
+// a write that was torn by a crash, and appending always starts on a fresh
+// segment so nothing is ever written after a torn record.
+public class FileStorage implements StorageInterface, Closeable {
+    private static final int SEGMENT_BYTES = Integer.getInteger("io.metaparticle.file.segmentBytes", 32 << 20);
+    private static final int HEADER_BYTES = 9;
+
+    private static final byte PUT = 1;
+    private static final byte RELEASE = 2;
+    // MemoryStorage's create count, at the start of a snapshot.
+    private static final byte CREATES = 3;
+
+    private final Path dir;
+    private final MemoryStorage memory;
+    // Held for as long as the process runs, so a second one can't share dir.
+    private final FileLock owner;
+    private final Thread flusher;
+    private final Thread snapshotter;
+
+    // Guarded by this. Positions are segment * SEGMENT_BYTES plus the offset
+    // into it, so they only go up.
+    private long segment;
+    private MappedByteBuffer buffer;
+    private long written;
+    private long flushed;
+    private IOException failure;
+    // The first segment that isn't covered by the latest snapshot.
+    private long snapshotDue;
+    private long snapshotDone;
+
+    public FileStorage(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        FileChannel lockFile = FileChannel.open(dir.resolve("lock"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock locked;
+        try {
+            locked = lockFile.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            // Held by another FileStorage in this process.
+            locked = null;
+        }
+        owner = locked;
+        if (owner == null) {
+            lockFile.close();
+            throw new IOException(dir + " is in use by another process");
+        }
+        long start = System.currentTimeMillis();
+        MemoryStorage restored = new MemoryStorage(new MemoryStorage.Journal() {
+            @Override
+            public byte[] encode(String name, Lock lock, long version) throws ApiException {
+                return journalRecord(name, lock, version);
+            }
+
+            @Override
+            public void written(byte[] record) {
+                append(record);
+            }
+        });
+        int records = recover(restored);
+        this.memory = restored;
+        synchronized (this) {
+            roll();
+        }
+        Log.info("Recovered " + records + " records from " + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+        flusher = thread("file-storage-flusher", this::flush);
+        snapshotter = thread("file-storage-snapshots", this::snapshots);
+    }
+
+    private static Thread thread(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // Stops the storage's threads, once a snapshot in progress is done, puts
+    // what is left of the log on disk and lets another process have dir.
+    // Writes after this fail.
+    @Override
+    public void close() throws IOException {
+        memory.close();
+        flusher.interrupt();
+        snapshotter.interrupt();
+        try {
+            flusher.join();
+            snapshotter.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing " + dir);
+        }
+        synchronized (this) {
+            if (failure == null) {
+                buffer.force();
+                flushed = written;
+                failure = new IOException(dir + " is closed");
+            }
+            notifyAll();
+        }
+        owner.channel().close();
+    }
+
+    private Path segmentPath(long n) {
+        return dir.resolve(String.format("log-%016d", n));
+    }
+
+    private Path snapshotPath(long n) {
+        return dir.resolve(String.format("snapshot-%016d", n));
+    }
+
+    // The numbers of the files in dir with prefix, in order.
+    private List<Long> list(String prefix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path p : files) {
+                try {
+                    numbers.add(Long.parseLong(p.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException ex) {
+                    // A snapshot still being written.
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    // Loads the latest snapshot and every segment from there on into memory,
+    // returning the number of records read.
+    private int recover(MemoryStorage memory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.tmp")) {
+            for (Path p : files) {
+                Files.delete(p);
+            }
+        }
+        List<Long> snapshots = list("snapshot-");
+        long from = 0;
+        int records = 0;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.get(snapshots.size() - 1);
+            records += replay(memory, ByteBuffer.wrap(Files.readAllBytes(snapshotPath(from))));
+        }
+        for (long n : list("log-")) {
+            segment = Math.max(segment, n);
+            if (n >= from) {
+                try (FileChannel ch = FileChannel.open(segmentPath(n), StandardOpenOption.READ)) {
+                    records += replay(memory, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                }
+            }
+        }
+        snapshotDone = from;
+        return records;
+    }
+
+    private int replay(MemoryStorage memory, ByteBuffer b) {
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (b.remaining() >= HEADER_BYTES) {
+            int length = b.getInt();
+            int sum = b.getInt();
+            if (length <= 0 || length > b.remaining() - 1) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            byte type = b.get();
+            b.get(payload);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != sum) {
+                break;
+            }
+            ByteBuffer p = ByteBuffer.wrap(payload);
+            if (type == CREATES) {
+                memory.restoreCreates(p.getLong());
+            } else {
+                long version = p.getLong();
+                Lock l = decode(p);
+                memory.restore(l.metadata.getName(), type == PUT ? l : null, version);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    private static byte[] encode(long version, Lock l) {
+        byte[][] fields = {
+            utf8(l.metadata.getName()),
+            utf8(l.metadata.getNamespace()),
+            utf8(l.spec == null ? null : l.spec.owner),
+            utf8(l.spec == null ? null : l.spec.expiry),
+        };
+        List<Lock.Holder> holders = l.spec == null ? null : l.spec.holders;
+        boolean counted = l.spec != null && (l.spec.limit != null || holders != null);
+        int size = 17;
+        for (byte[] f : fields) {
+            size += size(f);
+        }
+        byte[][] holderFields = null;
+        if (counted) {
+            size += 8;
+            if (holders != null) {
+                holderFields = new byte[holders.size() * 3][];
+                for (int i = 0; i < holders.size(); i++) {
+                    Lock.Holder h = holders.get(i);
+                    holderFields[3 * i] = utf8(h.owner);
+                    holderFields[3 * i + 1] = utf8(h.id);
+                    holderFields[3 * i + 2] = utf8(h.expiry);
+                    size += size(holderFields[3 * i]) + size(holderFields[3 * i + 1]) + size(holderFields[3 * i + 2]) + 9;
+                }
+            }
+        }
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putLong(version).put((byte) (l.spec == null ? 0 : 1));
+        b.putLong(l.spec == null || l.spec.expiry == null ? 0 : l.spec.getExpiryMillis());
+        for (byte[] f : fields) {
+            put(b, f);
+        }
+        if (counted) {
+            b.putInt(l.spec.limit == null ? -1 : l.spec.limit);
+            b.putInt(holders == null ? -1 : holders.size());
+            for (int i = 0; holders != null && i < holders.size(); i++) {
+                Lock.Holder h = holders.get(i);
+                put(b, holderFields[3 * i]);
+                put(b, holderFields[3 * i + 1]);
+                put(b, holderFields[3 * i + 2]);
+                b.putLong(h.expiry == null ? 0 : h.getExpiryMillis()).put((byte) (h.exclusive ? 1 : 0));
+            }
+        }
+        return b.array();
+    }
+
+    private static Lock decode(ByteBuffer b) {
+        boolean hasSpec = b.get() != 0;
+        long expiryMillis = b.getLong();
+        Lock l = new Lock();
+        l.metadata = new V1ObjectMeta().name(string(b)).namespace(string(b));
+        String owner = string(b);
+        String expiry = string(b);
+        if (hasSpec) {
+            l.spec = new Lock.LockSpec();
+            l.spec.owner = owner;
+            if (expiry != null) {
+                l.spec.setExpiry(expiry, expiryMillis);
+            }
+            // Plain locks stop here.
+            if (b.hasRemaining()) {
+                int limit = b.getInt();
+                int count = b.getInt();
+                l.spec.limit = limit < 0 ? null : limit;
+                if (count >= 0) {
+                    l.spec.holders = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        Lock.Holder h = new Lock.Holder();
+                        h.owner = string(b);
+                        h.id = string(b);
+                        String holderExpiry = string(b);
+                        long holderMillis = b.getLong();
+                        if (holderExpiry != null) {
+                            h.setExpiry(holderExpiry, holderMillis);
+                        }
+                        h.exclusive = b.get() != 0;
+                        l.spec.holders.add(h);
+                    }
+                }
+            }
+        }
+        return l;
+    }
+
+    private static int size(byte[] field) {
+        return 4 + (field == null ? 0 : field.length);
+    }
+
+    private static void put(ByteBuffer b, byte[] field) {
+        if (field == null) {
+            b.putInt(-1);
+        } else {
+            b.putInt(field.length).put(field);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer b) {
+        int length = b.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(b.array(), b.arrayOffset() + b.position(), length, StandardCharsets.UTF_8);
+        b.position(b.position() + length);
+        return s;
+    }
+
+    private static byte[] record(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        b.putInt(payload.length).putInt((int) crc.getValue()).put(type).put(payload);
+        return b.array();
+    }
+
+    // The record for a write, refused before the write is made if it could
+    // never fit in a segment.
+    private static byte[] journalRecord(String name, Lock lock, long version) throws ApiException {
+        byte type = PUT;
+        if (lock == null) {
+            type = RELEASE;
+            lock = new Lock();
+            lock.metadata = new V1ObjectMeta().name(name);
+        }
+        byte[] record = record(type, encode(version, lock));
+        if (record.length > SEGMENT_BYTES) {
+            throw new ApiException(413, "Lock " + name + " is too large to store");
+        }
+        return record;
+    }
+
+    // Appends a record to the log, unless it has failed or been closed.
+    private void append(byte[] record) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                if (buffer.remaining() < record.length) {
+                    roll();
+                }
+                buffer.put(record);
+                written = segment * SEGMENT_BYTES + buffer.position();
+                notifyAll();
+            } catch (IOException ex) {
+                Log.error("Failed to append to " + dir, ex);
+                failure = ex;
+                notifyAll();
+            }
+        }
+    }
+
+    // Moves on to a new segment once everything in the current one is on disk,
+    // and asks for a snapshot up to it.
+    private void roll() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            flushed = written;
+        }
+        segment++;
+        try (FileChannel ch = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+        syncDir();
+        written = segment * SEGMENT_BYTES;
+        flushed = written;
+        snapshotDue = segment;
+        notifyAll();
+    }
+
+    // Makes new and renamed files in dir durable. Not every platform lets a
+    // directory be opened, where it's left to the file system.
+    private void syncDir() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            Log.debug("Can't sync " + dir + ": " + ex.getMessage());
+        }
+    }
+
+    private void flush() {
+        while (!Thread.currentThread().isInterrupted()) {
+            MappedByteBuffer b;
+            long target;
+            synchronized (this) {
+                try {
+                    while (flushed >= written) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                b = buffer;
+                target = written;
+            }
+            b.force();
+            synchronized (this) {
+                flushed = Math.max(flushed, target);
+                notifyAll();
+            }
+        }
+    }
+
+    // Waits for everything logged so far, which includes this thread's
+    // writes, to be on disk.
+    private synchronized void sync() throws IOException {
+        long target = written;
+        try {
+            while (flushed < target && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + dir);
+        }
+        if (failure != null) {
+            throw new IOException("Lock log " + dir + " failed", failure);
+        }
+    }
+
+    private void snapshots() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long upTo;
+            synchronized (this) {
+                try {
+                    while (snapshotDue <= snapshotDone) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                upTo = snapshotDue;
+            }
+            try {
+                snapshot(upTo);
+            } catch (IOException | RuntimeException ex) {
+                Log.error("Failed to snapshot " + dir, ex);
+            }
+            synchronized (this) {
+                snapshotDone = Math.max(snapshotDone, upTo);
+            }
+        }
+    }
+
+    // Writes every live lock to a snapshot that replaces the segments before
+    // upTo. Everything written to those segments is already visible in
+    // memory, later writes may or may not be in the snapshot and are
+    // replayed over it from upTo on.
+    private void snapshot(long upTo) throws IOException {
+        Path tmp = dir.resolve(snapshotPath(upTo).getFileName() + ".tmp");
+        long creates = memory.creates();
+        int count = 0;
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                OutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            out.write(record(CREATES, ByteBuffer.allocate(8).putLong(creates).array()));
+            for (Lock l : memory.locks()) {
+                out.write(record(PUT, encode(Long.parseLong(l.metadata.getResourceVersion()), l)));
+                count++;
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, snapshotPath(upTo), StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+        for (long n : list("log-")) {
+            if (n < upTo) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+        for (long n : list("snapshot-")) {
+            if (n < upTo) {
+                Files.deleteIfExists(snapshotPath(n));
+            }
+        }
+        Log.info("Snapshot of " + count + " locks written to " + snapshotPath(upTo));
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException {
+        Lock result = memory.createLock(l);
+        sync();
+        return result;
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        Lock result = memory.updateLock(l);
+        sync();
+        return result;
+    }
+
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        memory.releaseLock(l);
+        sync();
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        return memory.getLock(name);
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        return memory.getVersion(name);
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        return memory.waitLock(name, resourceVersion, timeoutMillis);
+    }
+
+    // All of a batch's writes share one wait for the disk.
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        List<BatchResult> results = memory.updateLocks(names, updater);
+        sync();
+        return results;
+    }
+}
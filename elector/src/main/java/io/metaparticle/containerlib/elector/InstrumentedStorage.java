@@ -0,0 +1,86 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.metaparticle.metrics.Histogram;
+import io.metaparticle.metrics.JfrEvent;
+import io.metaparticle.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.List;
+
+// Records the latency and result of every call to the wrapped storage in
+// lockserver_storage_duration_seconds, labelled with the backend name, and as
+// an io.metaparticle.StorageCall flight recorder event.
+public class InstrumentedStorage implements StorageInterface {
+    private static final Histogram duration = MetricsRegistry.defaultRegistry.histogram(
+        "lockserver_storage_duration_seconds", "Latency of StorageInterface calls.",
+        Histogram.LATENCY_BUCKETS, "backend", "op", "code");
+    private static final JfrEvent.Type callEvent = JfrEvent.type("io.metaparticle.StorageCall",
+        "Storage Call", "One call to a LockServer's storage backend.",
+        "backend", String.class, "op", String.class, "lock", String.class, "code", String.class);
+
+    private String backend;
+    private StorageInterface storage;
+
+    public InstrumentedStorage(String backend, StorageInterface storage) {
+        this.backend = backend;
+        this.storage = storage;
+    }
+
+    // Runs a call to the wrapped storage, recording its latency and how it
+    // ended under op.
+    private <V> V observe(String op, String lock, SingleFlight.Call<V> call) throws ApiException, IOException {
+        JfrEvent event = callEvent.begin();
+        long start = System.nanoTime();
+        String code = "error";
+        try {
+            V result = call.call();
+            code = "200";
+            return result;
+        } catch (ApiException ex) {
+            code = Integer.toString(ex.getCode());
+            throw ex;
+        } finally {
+            duration.labels(backend, op, code).observeSince(start);
+            event.set(0, backend).set(1, op).set(2, lock).set(3, code).commit();
+        }
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException {
+        return observe("create", l.metadata.getName(), () -> storage.createLock(l));
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        return observe("update", l.metadata.getName(), () -> storage.updateLock(l));
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        return observe("get", name, () -> storage.getLock(name));
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        return observe("version", name, () -> storage.getVersion(name));
+    }
+
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        observe("release", l.metadata.getName(), () -> {
+            storage.releaseLock(l);
+            return null;
+        });
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        return observe("wait", name, () -> storage.waitLock(name, resourceVersion, timeoutMillis));
+    }
+
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        return observe("batch", null, () -> storage.updateLocks(names, updater));
+    }
+}
@@ -1,95 +1,338 @@
-package io.metaparticle.containerlib.elector;
-
-import com.squareup.okhttp.Call;
-
-import io.kubernetes.client.ApiClient;
-import io.kubernetes.client.ApiException;
-import io.kubernetes.client.Pair;
-import io.kubernetes.client.apis.ApiextensionsV1beta1Api;
-import io.kubernetes.client.models.V1ObjectMeta;
-import io.kubernetes.client.models.V1beta1CustomResourceDefinition;
-import io.kubernetes.client.models.V1beta1CustomResourceDefinitionNames;
-import io.kubernetes.client.models.V1beta1CustomResourceDefinitionSpec;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-
-public class KubernetesStorage implements StorageInterface {
-    ApiClient client;
-
-    public KubernetesStorage(ApiClient client) throws IOException, ApiException {
-        this.client = client;
-        createResourceIfNotExists(client);
-    }
-
-    public static void createResourceIfNotExists(ApiClient client) throws IOException, ApiException {
-        V1ObjectMeta meta = new V1ObjectMeta();
-        meta.setName("locks.metaparticle.io");
-
-        ApiextensionsV1beta1Api ext = new ApiextensionsV1beta1Api(client);
-        V1beta1CustomResourceDefinition crd;
-
-        try {
-            crd = ext.readCustomResourceDefinition(meta.getName(), null, null, null);
-            // If the above doesn't throw, the resource already exists, so just return.
-            return;
-        } catch (ApiException ex) {
-            if (ex.getCode() != 404) {
-                throw ex;
-            }
-        }
-        crd = new V1beta1CustomResourceDefinition();
-
-        crd.setMetadata(meta);
-
-        V1beta1CustomResourceDefinitionSpec spec = new V1beta1CustomResourceDefinitionSpec();
-        spec.setGroup("metaparticle.io");
-        spec.setVersion("v1");
-
-        V1beta1CustomResourceDefinitionNames names = new V1beta1CustomResourceDefinitionNames();
-        names.setKind("Lock");
-        names.setListKind("LockList");
-        names.setPlural("locks");
-
-        spec.setNames(names);
-        crd.setSpec(spec);
-        ext.createCustomResourceDefinition(crd, "false");
-    }
-
-    @Override
-    public Lock createLock(Lock l) throws ApiException, IOException  {
-        String path = "/apis/metaparticle.io/v1/namespaces/default/locks";
-        String method = "POST";
-        List<Pair> empty = new ArrayList<Pair>();
-        String[] authNames = new String[] { "BearerToken" };
-
-        Call call = client.buildCall(path, method, empty, empty, l, new HashMap<String, String>(),
-                new HashMap<String, Object>(), authNames, null);
-        return client.handleResponse(call.execute(), Lock.class);
-    }
-
-    @Override
-    public Lock updateLock(Lock l) throws ApiException, IOException {
-        String path = "/apis/metaparticle.io/v1/namespaces/default/locks/" + l.metadata.getName();
-        String method = "PUT";
-        List<Pair> empty = new ArrayList<Pair>();
-        String[] authNames = new String[] { "BearerToken" };
-        
-        Call call = client.buildCall(path, method, empty, empty, l, new HashMap<String, String>(),
-                new HashMap<String, Object>(), authNames, null);
-        return client.handleResponse(call.execute(), Lock.class);
-    }
-
-    @Override
-    public Lock getLock(String name) throws ApiException, IOException {
-        String path = "/apis/metaparticle.io/v1/namespaces/default/locks/" + name;
-        String method = "GET";
-        List<Pair> empty = new ArrayList<Pair>();
-        String[] authNames = new String[] { "BearerToken" };
-        
-        Call call = client.buildCall(path, method, empty, empty, null, new HashMap<String, String>(),
-                new HashMap<String, Object>(), authNames, null);
-        return client.handleResponse(call.execute(), Lock.class);
-    }
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.reflect.TypeToken;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.Pair;
+import io.kubernetes.client.apis.ApiextensionsV1beta1Api;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.kubernetes.client.models.V1beta1CustomResourceDefinition;
+import io.kubernetes.client.models.V1beta1CustomResourceDefinitionNames;
+import io.kubernetes.client.models.V1beta1CustomResourceDefinitionSpec;
+import io.kubernetes.client.util.Watch;
+import io.metaparticle.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class KubernetesStorage implements StorageInterface {
+    private static final Type WATCH_TYPE = new TypeToken<Watch.Response<Lock>>(){}.getType();
+    // Server side timeout for watchLocks(), after which the caller re-watches.
+    private static final long WATCH_SECONDS = 5 * 60;
+    private static final String MERGE_PATCH = "application/merge-patch+json";
+    private static final String[] AUTH_NAMES = new String[] { "BearerToken" };
+    private static final List<Pair> NO_PARAMS = Collections.emptyList();
+    private static final Map<String, Object> NO_FORM = Collections.emptyMap();
+    // How many async calls the HTTP client runs at once. OkHttp's default is
+    // only 5 per host, and every call goes to the one API server.
+    private static final int MAX_CONCURRENT_CALLS = Integer.getInteger("io.metaparticle.kubernetes.maxCalls", 64);
+
+    ApiClient client;
+    private final String namespace;
+    // The collection path for locks in namespace, built once.
+    private final String locksPath;
+
+    public KubernetesStorage(ApiClient client) throws IOException, ApiException {
+        this(client, "default");
+    }
+
+    public KubernetesStorage(ApiClient client, String namespace) throws IOException, ApiException {
+        this(client, namespace, true);
+    }
+
+    // With createResource false the CRD is left to the caller, e.g. to
+    // createResourceInBackground(), or to whoever deployed the LockServer.
+    public KubernetesStorage(ApiClient client, String namespace, boolean createResource)
+            throws IOException, ApiException {
+        this.client = client;
+        this.namespace = namespace;
+        this.locksPath = "/apis/metaparticle.io/v1/namespaces/" + namespace + "/locks";
+        Dispatcher dispatcher = client.getHttpClient().getDispatcher();
+        dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), MAX_CONCURRENT_CALLS));
+        dispatcher.setMaxRequestsPerHost(Math.max(dispatcher.getMaxRequestsPerHost(), MAX_CONCURRENT_CALLS));
+        if (createResource) {
+            createResourceIfNotExists(client);
+        }
+    }
+
+    // Creates the CRD on a daemon thread, retrying until it exists, so the
+    // server can start listening meanwhile. Until then lock calls fail with
+    // 404 and clients retry.
+    public static Thread createResourceInBackground(final ApiClient client) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        createResourceIfNotExists(client);
+                        return;
+                    } catch (ApiException | IOException | RuntimeException ex) {
+                        Log.error("Failed to create the Lock resource, retrying", ex);
+                    }
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }, "lock-crd");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    public static void createResourceIfNotExists(ApiClient client) throws IOException, ApiException {
+        V1ObjectMeta meta = new V1ObjectMeta();
+        meta.setName("locks.metaparticle.io");
+
+        ApiextensionsV1beta1Api ext = new ApiextensionsV1beta1Api(client);
+        V1beta1CustomResourceDefinition crd;
+
+        try {
+            crd = ext.readCustomResourceDefinition(meta.getName(), null, null, null);
+            // If the above doesn't throw, the resource already exists, so just return.
+            return;
+        } catch (ApiException ex) {
+            if (ex.getCode() != 404) {
+                throw ex;
+            }
+        }
+        crd = new V1beta1CustomResourceDefinition();
+
+        crd.setMetadata(meta);
+
+        V1beta1CustomResourceDefinitionSpec spec = new V1beta1CustomResourceDefinitionSpec();
+        spec.setGroup("metaparticle.io");
+        spec.setVersion("v1");
+
+        V1beta1CustomResourceDefinitionNames names = new V1beta1CustomResourceDefinitionNames();
+        names.setKind("Lock");
+        names.setListKind("LockList");
+        names.setPlural("locks");
+
+        spec.setNames(names);
+        crd.setSpec(spec);
+        ext.createCustomResourceDefinition(crd, "false");
+    }
+
+    private Call lockCall(String method, String path, Object body, String contentType) throws ApiException {
+        // The header map has to be fresh, auth adds its header to it.
+        Map<String, String> headers = new HashMap<String, String>(4);
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        return client.buildCall(path, method, NO_PARAMS, NO_PARAMS, body, headers, NO_FORM, AUTH_NAMES, null);
+    }
+
+    private Call createCall(Lock l) throws ApiException {
+        l.metadata.setNamespace(namespace);
+        return lockCall("POST", locksPath, l, null);
+    }
+
+    // A merge patch of only the spec, guarded by the resourceVersion so that it
+    // fails with 409 if the lock changed since it was read.
+    private Call updateCall(Lock l) throws ApiException {
+        V1ObjectMeta meta = new V1ObjectMeta();
+        meta.setResourceVersion(l.metadata.getResourceVersion());
+        Lock patch = new Lock();
+        patch.metadata = meta;
+        patch.spec = l.spec;
+        return lockCall("PATCH", locksPath + "/" + l.metadata.getName(), patch, MERGE_PATCH);
+    }
+
+    private Call getCall(String name) throws ApiException {
+        return lockCall("GET", locksPath + "/" + name, null, null);
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException  {
+        return client.handleResponse(createCall(l).execute(), Lock.class);
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        return client.handleResponse(updateCall(l).execute(), Lock.class);
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        return client.handleResponse(getCall(name).execute(), Lock.class);
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        return getLock(name).metadata.getResourceVersion();
+    }
+
+    // Deletes can only be conditional on uid, not resourceVersion, so a release
+    // is a conditional patch that moves the expiry into the past instead.
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        release(l);
+    }
+
+    // As releaseLock(), returning the lock as released.
+    Lock release(Lock l) throws ApiException, IOException {
+        l.spec.setExpiryMillis(0);
+        return updateLock(l);
+    }
+
+    public LockList listLocks() throws ApiException, IOException {
+        Call call = lockCall("GET", locksPath, null, null);
+        return client.handleResponse(call.execute(), LockList.class);
+    }
+
+    // Watches every lock, starting after the given resourceVersion. The server
+    // ends the watch after WATCH_SECONDS.
+    public Watch<Lock> watchLocks(String resourceVersion) throws ApiException {
+        List<Pair> query = new ArrayList<Pair>();
+        query.addAll(client.parameterToPair("resourceVersion", resourceVersion));
+        query.addAll(client.parameterToPair("timeoutSeconds", WATCH_SECONDS));
+        query.addAll(client.parameterToPair("watch", true));
+        return watchCall(query, (WATCH_SECONDS + 30) * 1000);
+    }
+
+    private Watch<Lock> watchCall(List<Pair> query, long readTimeoutMillis) throws ApiException {
+        Request request = client.buildRequest(locksPath, "GET", query, NO_PARAMS, null,
+                new HashMap<String, String>(), NO_FORM, AUTH_NAMES, null);
+        OkHttpClient http = client.getHttpClient().clone();
+        http.setReadTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS);
+        return Watch.createWatch(client, http.newCall(request), WATCH_TYPE);
+    }
+
+    // All of the reads are issued at once, then all of the writes, so a batch
+    // costs two round trips to the API server rather than two per lock.
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        List<Call> reads = new ArrayList<>(names.size());
+        for (String name : names) {
+            reads.add(getCall(name));
+        }
+        return applyUpdates(executeAll(names, reads), updater);
+    }
+
+    // Passes each read result through updater and issues all of the resulting
+    // writes at once. Results other than 200 and 404 are left untouched.
+    List<BatchResult> applyUpdates(List<BatchResult> results, Updater updater) throws ApiException, IOException {
+        List<Integer> indices = new ArrayList<>();
+        List<String> writeNames = new ArrayList<>();
+        List<Call> writes = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            BatchResult result = results.get(i);
+            if (result.code != 200 && result.code != 404) {
+                continue;
+            }
+            Lock next = updater.update(result.name, result.lock);
+            if (next == null) {
+                continue;
+            }
+            indices.add(i);
+            writeNames.add(result.name);
+            writes.add(result.lock == null ? createCall(next) : updateCall(next));
+        }
+        List<BatchResult> written = executeAll(writeNames, writes);
+        for (int i = 0; i < indices.size(); i++) {
+            results.set(indices.get(i), written.get(i));
+        }
+        return results;
+    }
+
+    // Runs the calls on the HTTP client's dispatcher, up to MAX_CONCURRENT_CALLS
+    // at once (less any other async calls in flight), and waits for all of them.
+    private List<BatchResult> executeAll(List<String> names, List<Call> calls) throws IOException {
+        final BatchResult[] results = new BatchResult[calls.size()];
+        final CountDownLatch done = new CountDownLatch(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            final int ix = i;
+            final String name = names.get(i);
+            calls.get(i).enqueue(new Callback() {
+                @Override
+                public void onFailure(Request request, IOException ex) {
+                    results[ix] = BatchResult.failure(name, 500, ex.toString());
+                    done.countDown();
+                }
+
+                @Override
+                public void onResponse(Response response) {
+                    try {
+                        Lock l = client.handleResponse(response, Lock.class);
+                        results[ix] = BatchResult.success(name, l);
+                    } catch (ApiException ex) {
+                        results[ix] = BatchResult.failure(name, ex.getCode(), ex.getMessage());
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for batch");
+        }
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        Lock l = getLock(name);
+        if (timeoutMillis <= 0 || !l.metadata.getResourceVersion().equals(resourceVersion)) {
+            return l;
+        }
+        List<Pair> query = new ArrayList<Pair>();
+        query.addAll(client.parameterToPair("fieldSelector", "metadata.name=" + name));
+        query.addAll(client.parameterToPair("resourceVersion", resourceVersion));
+        query.addAll(client.parameterToPair("timeoutSeconds", (timeoutMillis + 999) / 1000));
+        query.addAll(client.parameterToPair("watch", true));
+        // The watch only sends data when the lock changes, so the read timeout
+        // bounds the whole wait with millisecond precision.
+        Watch<Lock> watch = watchCall(query, timeoutMillis);
+        try {
+            if (watch.hasNext()) {
+                Watch.Response<Lock> event = watch.next();
+                if ("DELETED".equals(event.type)) {
+                    throw new ApiException(404, "Not found");
+                }
+                if (event.object != null) {
+                    return event.object;
+                }
+                // An ERROR event (e.g. 410 Gone for a compacted resourceVersion)
+                // falls through to a fresh read.
+            }
+        } catch (RuntimeException ex) {
+            // A read timeout is the wait ending with no change, anything else
+            // is worth knowing about. Either way, read the lock as it is now.
+            if (!timedOut(ex)) {
+                Log.error("Failed to watch lock " + name, ex);
+            }
+        } finally {
+            watch.close();
+        }
+        return getLock(name);
+    }
+
+    // Whether a watch failed because nothing came before the read timeout.
+    private static boolean timedOut(Throwable ex) {
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedIOException) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
\ No newline at end of file
@@ -1,26 +1,182 @@
-package io.metaparticle.containerlib.elector;
-
-import com.google.gson.annotations.SerializedName;
-import io.kubernetes.client.models.V1ObjectMeta;
-
-public class Lock {
-    public static class LockSpec {
-        @SerializedName("owner")
-        public String owner = null;
-
-        @SerializedName("expiry")
-        public String expiry = null;
-    }
-
-    @SerializedName("metadata")
-    public V1ObjectMeta metadata = null;
-
-    @SerializedName("kind")
-    private String kind = "Lock";
-
-    @SerializedName("apiVersion")
-    private String apiVersion = "metaparticle.io/v1";
-
-    @SerializedName("spec")
-    public LockSpec spec;
-}
\ No newline at end of file
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.annotations.SerializedName;
+import io.kubernetes.client.models.V1ObjectMeta;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import org.joda.time.DateTime;
+
+public class Lock {
+    // An expiry with the epoch millis it parses to. Cached as one object, so
+    // that a thread reading a lock while another sets its expiry can never
+    // pair one expiry's text with the other's millis.
+    private static final class ParsedExpiry {
+        static final ParsedExpiry NONE = new ParsedExpiry(null, 0);
+
+        final String text;
+        final long millis;
+
+        ParsedExpiry(String text, long millis) {
+            this.text = text;
+            this.millis = millis;
+        }
+    }
+
+    public static class LockSpec {
+        @SerializedName("owner")
+        public String owner = null;
+
+        // An ISO-8601 timestamp, use getExpiryMillis()/setExpiryMillis() to
+        // avoid re-parsing it.
+        @SerializedName("expiry")
+        public String expiry = null;
+
+        // For counted and shared locks, the most shared holders it admits at
+        // once, null or 0 for no limit.
+        @SerializedName("limit")
+        public Integer limit = null;
+
+        // For counted and shared locks, which take holders instead of an owner
+        // (owner is then ""), each holder with its own expiry. expiry is the
+        // earliest of theirs, when the lock next changes on its own.
+        @SerializedName("holders")
+        public List<Holder> holders = null;
+
+        // expiry as epoch millis, valid while parsed.text == expiry.
+        private transient volatile ParsedExpiry parsed = ParsedExpiry.NONE;
+
+        public long getExpiryMillis() {
+            String e = expiry;
+            ParsedExpiry p = parsed;
+            if (e != p.text) {
+                p = new ParsedExpiry(e, parseExpiry(e));
+                parsed = p;
+            }
+            return p.millis;
+        }
+
+        public void setExpiryMillis(long millis) {
+            String e = Instant.ofEpochMilli(millis).toString();
+            expiry = e;
+            parsed = new ParsedExpiry(e, millis);
+        }
+
+        // Sets expiry along with the millis it is already known to parse to.
+        void setExpiry(String expiry, long millis) {
+            this.expiry = expiry;
+            parsed = new ParsedExpiry(expiry, millis);
+        }
+
+        public LockSpec copy() {
+            LockSpec c = new LockSpec();
+            c.owner = owner;
+            c.expiry = expiry;
+            c.parsed = parsed;
+            c.limit = limit;
+            if (holders != null) {
+                c.holders = new ArrayList<>(holders.size());
+                for (Holder h : holders) {
+                    c.holders.add(h.copy());
+                }
+            }
+            return c;
+        }
+    }
+
+    // One client of a counted or shared lock: the LockServer it came through
+    // and the id it chose.
+    public static class Holder {
+        @SerializedName("owner")
+        public String owner = null;
+
+        @SerializedName("id")
+        public String id = null;
+
+        // Exclusive holders hold the lock alone, shared ones count against limit.
+        @SerializedName("exclusive")
+        public boolean exclusive;
+
+        @SerializedName("expiry")
+        public String expiry = null;
+
+        private transient volatile ParsedExpiry parsed = ParsedExpiry.NONE;
+
+        public long getExpiryMillis() {
+            String e = expiry;
+            ParsedExpiry p = parsed;
+            if (e != p.text) {
+                p = new ParsedExpiry(e, parseExpiry(e));
+                parsed = p;
+            }
+            return p.millis;
+        }
+
+        public void setExpiryMillis(long millis) {
+            String e = Instant.ofEpochMilli(millis).toString();
+            expiry = e;
+            parsed = new ParsedExpiry(e, millis);
+        }
+
+        void setExpiry(String expiry, long millis) {
+            this.expiry = expiry;
+            parsed = new ParsedExpiry(expiry, millis);
+        }
+
+        public Holder copy() {
+            Holder c = new Holder();
+            c.owner = owner;
+            c.id = id;
+            c.exclusive = exclusive;
+            c.expiry = expiry;
+            c.parsed = parsed;
+            return c;
+        }
+    }
+
+    // Whether after is only before renewed: the same owner and holders, and
+    // not expired at now. Anyone waiting for the lock has no use for that.
+    static boolean renewed(Lock before, Lock after, long now) {
+        if (before.spec == null || after.spec == null || after.spec.expiry == null
+                || after.spec.getExpiryMillis() <= now) {
+            return false;
+        }
+        return Objects.equals(before.spec.owner, after.spec.owner)
+            && Objects.equals(before.spec.limit, after.spec.limit)
+            && holders(before).equals(holders(after));
+    }
+
+    private static Set<String> holders(Lock l) {
+        Set<String> result = new HashSet<>();
+        if (l.spec.holders != null) {
+            for (Holder h : l.spec.holders) {
+                result.add(h.owner + "/" + h.id + (h.exclusive ? "/exclusive" : ""));
+            }
+        }
+        return result;
+    }
+
+    // We write UTC timestamps, which java.time parses cheaply. Anything else
+    // (e.g. locks written with a zone offset by older versions) goes through Joda.
+    static long parseExpiry(String expiry) {
+        if (expiry.endsWith("Z")) {
+            return Instant.parse(expiry).toEpochMilli();
+        }
+        return DateTime.parse(expiry).getMillis();
+    }
+
+    @SerializedName("metadata")
+    public V1ObjectMeta metadata = null;
+
+    @SerializedName("kind")
+    private String kind = "Lock";
+
+    @SerializedName("apiVersion")
+    private String apiVersion = "metaparticle.io/v1";
+
+    @SerializedName("spec")
+    public LockSpec spec;
+}
@@ -0,0 +1,65 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+// Writes a Lock for LockServer's clients without reflecting over V1ObjectMeta:
+// only the name, namespace and resourceVersion are sent, which is all the
+// clients read. Reading falls back to Gson's reflective adapter.
+class LockAdapter extends TypeAdapter<Lock> {
+    private static final TypeAdapter<Lock> reflective = new Gson().getAdapter(Lock.class);
+
+    static Gson newGson() {
+        return new GsonBuilder().registerTypeAdapter(Lock.class, new LockAdapter()).create();
+    }
+
+    @Override
+    public void write(JsonWriter out, Lock l) throws IOException {
+        if (l == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (l.metadata != null) {
+            out.name("metadata").beginObject();
+            out.name("name").value(l.metadata.getName());
+            out.name("namespace").value(l.metadata.getNamespace());
+            out.name("resourceVersion").value(l.metadata.getResourceVersion());
+            out.endObject();
+        }
+        out.name("kind").value("Lock");
+        out.name("apiVersion").value("metaparticle.io/v1");
+        if (l.spec != null) {
+            out.name("spec").beginObject();
+            out.name("owner").value(l.spec.owner);
+            out.name("expiry").value(l.spec.expiry);
+            if (l.spec.limit != null) {
+                out.name("limit").value(l.spec.limit);
+            }
+            if (l.spec.holders != null) {
+                out.name("holders").beginArray();
+                for (Lock.Holder h : l.spec.holders) {
+                    out.beginObject();
+                    out.name("owner").value(h.owner);
+                    out.name("id").value(h.id);
+                    out.name("exclusive").value(h.exclusive);
+                    out.name("expiry").value(h.expiry);
+                    out.endObject();
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Lock read(JsonReader in) throws IOException {
+        return reflective.read(in);
+    }
+}
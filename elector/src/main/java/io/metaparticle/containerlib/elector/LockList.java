@@ -0,0 +1,19 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.annotations.SerializedName;
+import io.kubernetes.client.models.V1ListMeta;
+import java.util.List;
+
+public class LockList {
+    @SerializedName("metadata")
+    public V1ListMeta metadata = null;
+
+    @SerializedName("kind")
+    private String kind = "LockList";
+
+    @SerializedName("apiVersion")
+    private String apiVersion = "metaparticle.io/v1";
+
+    @SerializedName("items")
+    public List<Lock> items = null;
+}
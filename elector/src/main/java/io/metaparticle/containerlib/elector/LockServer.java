@@ -1,185 +1,1005 @@
-package io.metaparticle.containerlib.elector;
-
-import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
-
-import io.kubernetes.client.ApiException;
-import io.kubernetes.client.models.V1ObjectMeta;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
-
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
-
-public class LockServer implements Runnable {
-    public static class Error {
-        @SerializedName("message")
-        public String msg = null;
-    }
-
-    private Gson gson;
-    private StorageInterface client;
-    private String hostname;
-    private long ttl;
-    private int port;
-
-    public LockServer(StorageInterface client, String hostname, long ttl, int port) {
-        this.gson = new Gson();
-        this.client = client;
-        this.hostname = hostname;
-        this.ttl = ttl;
-        this.port = port;
-    }
-
-    private static Lock createLock(String lockName, String owner, long ttl) {
-        Lock l = new Lock();
-        V1ObjectMeta meta = new V1ObjectMeta();
-        meta.setName(lockName);
-        meta.setNamespace("default");
-        l.metadata = meta;
-
-        Lock.LockSpec spec = new Lock.LockSpec();
-        spec.owner = owner;
-        spec.expiry = new DateTime().plus(ttl).toString();
-        l.spec = spec;
-
-        System.out.println("Creating lock owned by " + l.spec.owner);
-
-        return l;
-    }
-
-    public static String error(Gson gson, String msg) {
-        Error err = new Error();
-        err.msg = msg;
-        return gson.toJson(err);
-    }
-
-    public static void sendResponse(int code, String msg, HttpExchange exchange) throws IOException {
-        exchange.sendResponseHeaders(code, msg.length());
-        OutputStream os = exchange.getResponseBody();
-        os.write(msg.getBytes());
-        os.close();
-    }
-
-    protected static String validateRequest(Gson gson, HttpExchange t) throws IOException {
-        String path = t.getRequestURI().getPath();
-        if (!path.startsWith("/locks")) {
-            sendResponse(404, error(gson, "Unknown path: " + path), t);
-            return null;
-        }
-        String[] parts = path.split("/");
-        String name = null;
-        switch (parts.length) {
-        case 2:
-            InputStream is = t.getRequestBody();
-            Lock l = gson.fromJson(new InputStreamReader(is), Lock.class);
-            name = l.metadata.getName();
-            is.close();
-            break;
-        case 3:
-            name = parts[2];
-            break;
-        default:
-            sendResponse(429, error(gson, "Bad path: " + path), t);
-            return null;
-        }
-        return name;
-    }
-
-    public void handleLockServe(String lockName, HttpExchange t) throws IOException {
-        try {
-            Lock l = null;
-            try {
-                l = client.getLock(lockName);
-            } catch (ApiException ex) {
-                if (ex.getCode() != 404) {
-                    throw ex;
-                }
-            }
-            switch (t.getRequestMethod()) {
-            case "GET":
-                if (l == null) {
-                    sendResponse(404, error(gson, "Not found."), t);
-                } else {
-                    sendResponse(200, gson.toJson(l), t);
-                }
-                break;
-            case "POST":
-                if (l != null) {
-                    sendResponse(409, error(gson, "Conflict"), t);
-                    return;
-                }
-                l = createLock(lockName, hostname, ttl);
-                l = client.createLock(l);
-                sendResponse(200, gson.toJson(l), t);
-                break;
-            case "PUT":
-                if (l == null) {
-                    l = createLock(lockName, hostname, ttl);
-                    l = client.createLock(l);
-                    sendResponse(200, gson.toJson(l), t);
-                    return;
-                }
-                System.out.println("Lock owned by: " + l.spec.owner);
-                DateTime expires = DateTime.parse(l.spec.expiry);
-                Duration d = new Duration(new DateTime(), expires);
-                System.out.println("Expires in " + d);
-                if (d.getMillis() < 0 || (l.spec.owner.equals(hostname) && d.getMillis() < (ttl / 2))) {
-                    System.out.println("Updating lock to be owned by: " + hostname);
-                    l.spec.owner = hostname;
-                    l.spec.expiry = new DateTime().plus(ttl).toString();
-                    l = client.updateLock(l);
-                    sendResponse(200, gson.toJson(l), t);
-                    return;
-                } else if (l.spec.owner.equals(hostname)) {
-                    sendResponse(200, gson.toJson(l), t);
-                } else {
-                    sendResponse(409, gson.toJson(l), t);
-                }
-                break;
-            }
-        } catch (ApiException ex) {
-            ex.printStackTrace();
-            sendResponse(ex.getCode(), error(gson, ex.toString()), t);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            sendResponse(500, error(gson, "An error occurred: " + ex), t);
-        }
-    }
-
-    public void run() {
-        try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-            server.createContext("/", new HttpHandler() {
-                @Override
-                public void handle(HttpExchange t) throws IOException {
-                    System.out.println(t.getRequestURI());
-                    String name = LockServer.validateRequest(LockServer.this.gson, t);
-                    if (name == null) {
-                        return;
-                    }
-                    System.out.println("Lock name is: " + name);
-                    LockServer.this.handleLockServe(name, t);
-                }
-            });
-            server.start();
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-    }
-
-    public static LockServer newLockServer(final StorageInterface client, int port,
-            final String hostname, final long ttl) throws IOException {
-        LockServer lockServe = new LockServer(client, hostname, ttl, port);
-        lockServe.run();
-        return lockServe;
-    }
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.metaparticle.Log;
+import io.metaparticle.metrics.Counter;
+import io.metaparticle.metrics.Histogram;
+import io.metaparticle.metrics.JfrEvent;
+import io.metaparticle.metrics.MetricsRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class LockServer implements Runnable {
+    // Upper bound on how long a single GET ?wait= request may block.
+    private static final long MAX_WAIT_MILLIS = 60 * 1000;
+    // Size of the default worker pool when virtual threads aren't available.
+    // Waiting GETs each hold a worker, so this is deliberately generous.
+    private static final int DEFAULT_THREADS = 256;
+    // The share of a bounded worker pool that waiting GETs may hold, so
+    // renewals still find a worker when many contenders are waiting.
+    private static final double MAX_WAITING_SHARE = 0.75;
+    private static final int DEFAULT_QUEUE = 1024;
+    // How many times a holder's PUT or DELETE is retried after losing the
+    // compare-and-swap to another holder of the same lock.
+    private static final int HOLDER_RETRIES = 8;
+    // Default admission control, see Admission and setAdmission().
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final int DEFAULT_MAX_QUEUED = 512;
+    private static final int DEFAULT_MAX_PER_CLIENT = 128;
+    // Well inside a renewal's slack, so a queued renewal is still useful.
+    private static final long MAX_QUEUE_MILLIS = 2000;
+
+    private static final Histogram requestDuration = MetricsRegistry.defaultRegistry.histogram(
+        "lockserver_request_duration_seconds", "Latency of LockServer requests.",
+        Histogram.LATENCY_BUCKETS, "method", "code");
+    private static final JfrEvent.Type requestEvent = JfrEvent.type("io.metaparticle.LockServerRequest",
+        "LockServer Request", "One request handled by a LockServer, including any time queued or waiting.",
+        "method", String.class, "path", String.class, "code", int.class);
+    private static final Counter transitions = MetricsRegistry.defaultRegistry.counter(
+        "lockserver_lock_transitions_total", "Times a lock was taken over by a new owner.", "lock");
+    private static final Counter coalesced = MetricsRegistry.defaultRegistry.counter(
+        "lockserver_coalesced_requests_total", "Requests answered by another request's storage call.", "method");
+
+    public static class Error {
+        @SerializedName("message")
+        public String msg = null;
+    }
+
+    // names are acquired or renewed, read are only read, and release are
+    // released if this server owns them.
+    public static class BatchRequest {
+        @SerializedName("names")
+        public List<String> names = null;
+
+        @SerializedName("read")
+        public List<String> read = null;
+
+        @SerializedName("release")
+        public List<String> release = null;
+    }
+
+    public static class BatchResponse {
+        @SerializedName("results")
+        public List<BatchResult> results = null;
+
+        @SerializedName("read")
+        public List<BatchResult> read = null;
+
+        @SerializedName("released")
+        public List<BatchResult> released = null;
+    }
+
+    private Gson gson;
+    private StorageInterface client;
+    private String hostname;
+    private long ttl;
+    private int port;
+    private Executor executor;
+    private int backlog;
+    private HttpServer server;
+    // Concurrent GETs and PUTs of the same lock share one storage call. Every
+    // caller of this server acts as the same owner, so they'd all get the
+    // same answer anyway.
+    private final SingleFlight<Lock> reads = new SingleFlight<>(coalesced.labels("GET"));
+    private final SingleFlight<Lock> puts = new SingleFlight<>(coalesced.labels("PUT"));
+    private volatile Admission admission = new Admission(
+        DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED, DEFAULT_MAX_PER_CLIENT, MAX_QUEUE_MILLIS);
+    // How many GETs may wait at once, set by run() from the worker pool.
+    private volatile int maxWaiting = Integer.MAX_VALUE;
+    // The locks, and places on counted and shared locks, this server holds as
+    // far as it knows, with their expiries. Only used to tell renewals from
+    // acquisitions for admission, so it doesn't matter if it is out of date.
+    private final ConcurrentHashMap<String, Long> held = new ConcurrentHashMap<>();
+
+    public LockServer(StorageInterface client, String hostname, long ttl, int port) {
+        this.gson = LockAdapter.newGson();
+        this.client = client;
+        this.hostname = hostname;
+        this.ttl = ttl;
+        this.port = port;
+    }
+
+    // Sets the executor that exchanges are handled on. If none is set, run()
+    // uses virtual threads where the JDK has them and workerPool() otherwise.
+    // A pool mustn't be shared with another server: each limits its waiting
+    // GETs to a share of the pool, assuming it has the pool to itself.
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    // Sets the listen backlog for the server socket, 0 means the system default.
+    // Limits requests working against storage to maxInFlight at once, with up
+    // to maxQueued more waiting, and each client to maxPerClient acquisitions
+    // and reads. Requests beyond that get a 429 with a Retry-After.
+    public void setAdmission(int maxInFlight, int maxQueued, int maxPerClient) {
+        Admission a = new Admission(maxInFlight, maxQueued, maxPerClient, MAX_QUEUE_MILLIS);
+        a.setMaxWaiting(maxWaiting);
+        admission = a;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    // Sets how long idle keep-alive connections are held open and how many of
+    // them are kept. The JDK server reads these once per JVM, so this must be
+    // called before the first LockServer is run.
+    public static void setKeepAlive(int idleSeconds, int maxIdleConnections) {
+        System.setProperty("sun.net.httpserver.idleInterval", Integer.toString(idleSeconds));
+        System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(maxIdleConnections));
+    }
+
+    // A pool of up to threads workers with a bounded queue in front of it.
+    // Exchanges beyond that are rejected and the connection closed, rather
+    // than queuing without limit.
+    public static ExecutorService workerPool(int threads, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "lockserver-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // A thread per exchange executor on virtual threads, or null if this JDK
+    // doesn't have them. Looked up reflectively so we still build for Java 8.
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static Lock createLock(String lockName, String owner, long ttl) {
+        Lock l = new Lock();
+        V1ObjectMeta meta = new V1ObjectMeta();
+        meta.setName(lockName);
+        meta.setNamespace("default");
+        l.metadata = meta;
+
+        Lock.LockSpec spec = new Lock.LockSpec();
+        spec.owner = owner;
+        spec.setExpiryMillis(System.currentTimeMillis() + ttl);
+        l.spec = spec;
+
+        Log.info("Creating lock " + lockName + " owned by " + owner);
+
+        return l;
+    }
+
+    public static String error(Gson gson, String msg) {
+        Error err = new Error();
+        err.msg = msg;
+        return gson.toJson(err);
+    }
+
+    public static void sendResponse(int code, String msg, HttpExchange exchange) throws IOException {
+        byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    // Serializes body straight into a byte buffer and sends it with a single
+    // write, with no intermediate String.
+    public static void sendJson(int code, Gson gson, Object body, HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(512);
+        Writer w = new OutputStreamWriter(buf, StandardCharsets.UTF_8);
+        gson.toJson(body, w);
+        w.flush();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, buf.size());
+        OutputStream os = exchange.getResponseBody();
+        buf.writeTo(os);
+        os.close();
+    }
+
+    protected static String validateRequest(Gson gson, HttpExchange t) throws IOException {
+        String path = t.getRequestURI().getPath();
+        if (!path.startsWith("/locks")) {
+            sendResponse(404, error(gson, "Unknown path: " + path), t);
+            return null;
+        }
+        String[] parts = path.split("/");
+        String name = null;
+        switch (parts.length) {
+        case 2:
+            InputStream is = t.getRequestBody();
+            Lock l = gson.fromJson(new InputStreamReader(is, StandardCharsets.UTF_8), Lock.class);
+            name = l == null || l.metadata == null ? null : l.metadata.getName();
+            is.close();
+            break;
+        case 3:
+            name = parts[2];
+            break;
+        default:
+            sendResponse(429, error(gson, "Bad path: " + path), t);
+            return null;
+        }
+        if (!validName(name)) {
+            sendResponse(400, error(gson, "Bad name: " + name), t);
+            return null;
+        }
+        return name;
+    }
+
+    // Lock names become a path segment of the storage's URLs, so must be
+    // exactly one.
+    static boolean validName(String name) {
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean validNames(List<String> names) {
+        if (names != null) {
+            for (String name : names) {
+                if (!validName(name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    protected static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        if (rawQuery == null) {
+            return result;
+        }
+        for (String param : rawQuery.split("&")) {
+            int ix = param.indexOf('=');
+            if (ix < 0) {
+                result.put(URLDecoder.decode(param, "UTF-8"), "");
+            } else {
+                result.put(URLDecoder.decode(param.substring(0, ix), "UTF-8"),
+                        URLDecoder.decode(param.substring(ix + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    // Returns how long a GET may block waiting for the lock to change: the
+    // requested wait, capped so that the caller is woken when the lock expires.
+    private static long waitMillis(Map<String, String> query, Lock l) {
+        long untilExpiry = l.spec.getExpiryMillis() - System.currentTimeMillis();
+        return Math.max(0, Math.min(requestedWait(query), untilExpiry));
+    }
+
+    private static long requestedWait(Map<String, String> query) {
+        String wait = query.get("wait");
+        if (wait == null) {
+            return 0;
+        }
+        try {
+            return Math.min(Long.parseLong(wait), MAX_WAIT_MILLIS);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static String etag(String resourceVersion) {
+        return "\"" + resourceVersion + "\"";
+    }
+
+    // Whether an If-None-Match header names etag. Versions change whenever
+    // anything in the lock does, so weak and strong tags compare the same.
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Answers a conditional GET with a 304 if the caller already has the
+    // current version of the lock, looking up only the version so nothing is
+    // copied or serialized. Returns false if the caller needs the lock.
+    private boolean notModified(String lockName, String ifNoneMatch, HttpExchange t) throws ApiException, IOException {
+        String etag;
+        try {
+            etag = etag(client.getVersion(lockName));
+        } catch (ApiException ex) {
+            if (ex.getCode() != 404) {
+                throw ex;
+            }
+            return false;
+        }
+        if (!matches(ifNoneMatch, etag)) {
+            return false;
+        }
+        sendNotModified(etag, t);
+        return true;
+    }
+
+    private static void sendNotModified(String etag, HttpExchange t) throws IOException {
+        // The JDK only keeps the connection open if the request was read to
+        // the end, and after a 304 close() doesn't do that for us.
+        t.getRequestBody().close();
+        t.getResponseHeaders().set("ETag", etag);
+        t.sendResponseHeaders(304, -1);
+        t.close();
+    }
+
+    // Decides what a PUT from this server does to the lock: returns the lock to
+    // write if it is free, expired or ours and due for renewal, or null if the
+    // current lock should be left as it is.
+    private Lock acquire(String lockName, Lock l) {
+        if (l == null) {
+            return createLock(lockName, hostname, ttl);
+        }
+        long now = System.currentTimeMillis();
+        if (!liveHolders(l, now).isEmpty()) {
+            return null;
+        }
+        long remaining = l.spec.getExpiryMillis() - now;
+        if (Log.isDebug()) {
+            Log.debug("Lock " + lockName + " owned by " + l.spec.owner + ", expires in " + remaining + "ms");
+        }
+        if (remaining < 0 || (l.spec.owner.equals(hostname) && remaining < (ttl / 2))) {
+            if (!l.spec.owner.equals(hostname)) {
+                Log.info("Updating lock " + lockName + " to be owned by " + hostname);
+            }
+            l.spec.owner = hostname;
+            l.spec.setExpiryMillis(now + ttl);
+            if (l.spec.holders != null) {
+                // Empty rather than null, so a merge patch clears them.
+                l.spec.holders = new ArrayList<>();
+            }
+            return l;
+        }
+        return null;
+    }
+
+    // The holders of a counted or shared lock that haven't expired.
+    private static List<Lock.Holder> liveHolders(Lock l, long now) {
+        List<Lock.Holder> live = new ArrayList<>();
+        if (l != null && l.spec.holders != null) {
+            for (Lock.Holder h : l.spec.holders) {
+                if (h.getExpiryMillis() >= now) {
+                    live.add(h);
+                }
+            }
+        }
+        return live;
+    }
+
+    private Lock.Holder find(List<Lock.Holder> holders, String id) {
+        if (holders != null) {
+            for (Lock.Holder h : holders) {
+                if (hostname.equals(h.owner) && id.equals(h.id)) {
+                    return h;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean holds(Lock l, String id) {
+        Lock.Holder h = l == null ? null : find(l.spec.holders, id);
+        return h != null && h.getExpiryMillis() >= System.currentTimeMillis();
+    }
+
+    // Sets the holders of a counted or shared lock, and its expiry to the
+    // earliest of theirs, or now if there are none.
+    private static void setHolders(Lock l, List<Lock.Holder> holders, long now) {
+        long earliest = holders.isEmpty() ? now : Long.MAX_VALUE;
+        for (Lock.Holder h : holders) {
+            earliest = Math.min(earliest, h.getExpiryMillis());
+        }
+        l.spec.owner = "";
+        l.spec.holders = holders;
+        l.spec.setExpiryMillis(earliest);
+    }
+
+    // Decides what a PUT by holder id of a counted or shared lock does, much
+    // as acquire() does for a plain one: returns the lock to write with the
+    // holder admitted or renewed and expired holders dropped, or null if it
+    // should be left as it is. An exclusive holder is only admitted with no
+    // others, a shared one with no exclusive holder and, if there is a limit,
+    // fewer shared holders than that. The limit is the one the lock was
+    // created with, or taken up again when it has no holders.
+    private Lock admit(String lockName, Lock l, String id, boolean exclusive, int limit) {
+        long now = System.currentTimeMillis();
+        if (l == null) {
+            l = new Lock();
+            l.metadata = new V1ObjectMeta().name(lockName).namespace("default");
+            l.spec = new Lock.LockSpec();
+        } else if (l.spec.holders == null && l.spec.getExpiryMillis() >= now) {
+            // A plain lock that is held.
+            return null;
+        }
+        List<Lock.Holder> live = liveHolders(l, now);
+        boolean pruned = l.spec.holders != null && live.size() < l.spec.holders.size();
+        Lock.Holder mine = find(live, id);
+        if (mine != null) {
+            if (!pruned && mine.getExpiryMillis() - now >= ttl / 2) {
+                return null;
+            }
+            mine.setExpiryMillis(now + ttl);
+        } else {
+            if (live.isEmpty() || l.spec.limit == null) {
+                l.spec.limit = limit;
+            }
+            int shared = 0;
+            for (Lock.Holder h : live) {
+                if (h.exclusive) {
+                    return null;
+                }
+                shared++;
+            }
+            if (exclusive ? shared > 0 : l.spec.limit > 0 && shared >= l.spec.limit) {
+                return null;
+            }
+            Lock.Holder h = new Lock.Holder();
+            h.owner = hostname;
+            h.id = id;
+            h.exclusive = exclusive;
+            h.setExpiryMillis(now + ttl);
+            live.add(h);
+        }
+        setHolders(l, live, now);
+        return l;
+    }
+
+    // Reads the lock and admits or renews the holder if admit() says so,
+    // returning the lock as it now stands. A lost compare-and-swap is retried
+    // here rather than by the client, so holders that arrive together are
+    // all admitted if there is room.
+    private Lock putHolder(String lockName, String id, boolean exclusive, int limit) throws ApiException, IOException {
+        for (int attempt = 0; ; attempt++) {
+            Lock l = read(lockName);
+            boolean held = holds(l, id);
+            Lock next = admit(lockName, l, id, exclusive, limit);
+            if (next == null) {
+                return l;
+            }
+            try {
+                next = (l == null) ? client.createLock(next) : client.updateLock(next);
+            } catch (ApiException ex) {
+                if (ex.getCode() != 409 || attempt >= HOLDER_RETRIES) {
+                    throw ex;
+                }
+                continue;
+            }
+            if (!held) {
+                transitions.labels(lockName).inc();
+            }
+            return next;
+        }
+    }
+
+    // Takes holder id off a counted or shared lock, returning false if it
+    // isn't one of its holders.
+    private boolean releaseHolder(String lockName, String id) throws ApiException, IOException {
+        for (int attempt = 0; ; attempt++) {
+            Lock l = read(lockName);
+            Lock.Holder mine = l == null ? null : find(l.spec.holders, id);
+            if (mine == null) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            List<Lock.Holder> live = liveHolders(l, now);
+            live.remove(mine);
+            setHolders(l, live, now);
+            try {
+                client.updateLock(l);
+                return true;
+            } catch (ApiException ex) {
+                if (ex.getCode() != 409 || attempt >= HOLDER_RETRIES) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    // Handles a PUT or DELETE with ?holder=, which takes or lets go of a
+    // place on a counted or shared lock rather than the lock itself:
+    // ?mode=exclusive or shared (the default), and ?limit= the most shared
+    // holders at once, 0 for no limit.
+    private void handleHolder(String lockName, Map<String, String> query, HttpExchange t) throws ApiException, IOException {
+        String id = query.get("holder");
+        switch (t.getRequestMethod()) {
+        case "PUT":
+            String mode = query.get("mode");
+            if (mode != null && !mode.equals("shared") && !mode.equals("exclusive")) {
+                sendResponse(400, error(gson, "Bad mode: " + mode), t);
+                return;
+            }
+            int limit;
+            try {
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 0;
+            } catch (NumberFormatException ex) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                sendResponse(400, error(gson, "Bad limit: " + query.get("limit")), t);
+                return;
+            }
+            Lock l = putHolder(lockName, id, "exclusive".equals(mode), limit);
+            Lock.Holder h = l == null ? null : find(l.spec.holders, id);
+            if (holds(l, id)) {
+                held.put(holderKey(lockName, id), h.getExpiryMillis());
+                sendJson(200, gson, l, t);
+            } else {
+                held.remove(holderKey(lockName, id));
+                sendJson(409, gson, l, t);
+            }
+            break;
+        case "DELETE":
+            held.remove(holderKey(lockName, id));
+            if (releaseHolder(lockName, id)) {
+                Log.info("Released " + lockName + " for " + id);
+                t.sendResponseHeaders(204, -1);
+                t.close();
+            } else {
+                sendResponse(404, error(gson, "Not found."), t);
+            }
+            break;
+        default:
+            sendResponse(405, error(gson, "Method not allowed: " + t.getRequestMethod()), t);
+        }
+    }
+
+    // Releases, acquires or renews, and reads the locks named in the request
+    // body, as if each had been DELETEd, PUT or GET on its own, and returns a
+    // result per lock.
+    public void handleBatch(HttpExchange t) throws IOException {
+        if (!t.getRequestMethod().equals("POST")) {
+            sendResponse(405, error(gson, "Method not allowed: " + t.getRequestMethod()), t);
+            return;
+        }
+        try {
+            InputStream is = t.getRequestBody();
+            BatchRequest req = gson.fromJson(new InputStreamReader(is, StandardCharsets.UTF_8), BatchRequest.class);
+            is.close();
+            if (req == null || (req.names == null && req.read == null && req.release == null)) {
+                sendResponse(400, error(gson, "Missing names."), t);
+                return;
+            }
+            if (!validNames(req.names) || !validNames(req.read) || !validNames(req.release)) {
+                sendResponse(400, error(gson, "Bad name."), t);
+                return;
+            }
+            Admission.Permit permit;
+            try {
+                permit = admission.admit(priority(req), remote(t));
+            } catch (Admission.Rejected ex) {
+                sendRejected(ex, t);
+                return;
+            }
+            try {
+                serveBatch(req, t);
+            } finally {
+                permit.close();
+            }
+        } catch (ApiException ex) {
+            Log.error("Storage error", ex);
+            sendResponse(ex.getCode(), error(gson, ex.toString()), t);
+        } catch (IOException ex) {
+            Log.error("Request failed", ex);
+            sendResponse(500, error(gson, "An error occurred: " + ex), t);
+        }
+    }
+
+    private void serveBatch(BatchRequest req, HttpExchange t) throws ApiException, IOException {
+        BatchResponse resp = new BatchResponse();
+        if (req.release != null) {
+            resp.released = releaseAll(req.release);
+        }
+        if (req.names != null) {
+            resp.results = acquireAll(req.names);
+        }
+        if (req.read != null) {
+            resp.read = new ArrayList<>(req.read.size());
+            for (String name : req.read) {
+                Lock l = read(name);
+                resp.read.add(l == null ? BatchResult.failure(name, 404, "Not found") : BatchResult.success(name, l));
+            }
+        }
+        sendJson(200, gson, resp, t);
+    }
+
+    private List<BatchResult> acquireAll(List<String> names) throws ApiException, IOException {
+        final Map<String, String> previousOwners = new HashMap<>();
+        List<BatchResult> results = client.updateLocks(names, new StorageInterface.Updater() {
+            @Override
+            public Lock update(String name, Lock current) {
+                previousOwners.put(name, current == null ? null : current.spec.owner);
+                return acquire(name, current);
+            }
+        });
+        for (BatchResult result : results) {
+            if (result.code != 200) {
+                continue;
+            }
+            track(result.name, result.lock);
+            if (!result.lock.spec.owner.equals(hostname)) {
+                result.code = 409;
+            } else if (!hostname.equals(previousOwners.get(result.name))) {
+                transitions.labels(result.name).inc();
+            }
+        }
+        return results;
+    }
+
+    // Releases each lock this server owns, as a DELETE would: 204 if it was
+    // released, 404 if it doesn't exist and 409 if someone else owns it.
+    private List<BatchResult> releaseAll(List<String> names) throws ApiException, IOException {
+        List<BatchResult> results = new ArrayList<>(names.size());
+        for (String name : names) {
+            held.remove(name);
+            Lock l = read(name);
+            if (l == null) {
+                results.add(BatchResult.failure(name, 404, "Not found"));
+            } else if (!l.spec.owner.equals(hostname)) {
+                BatchResult result = BatchResult.success(name, l);
+                result.code = 409;
+                results.add(result);
+            } else {
+                try {
+                    client.releaseLock(l);
+                    BatchResult result = new BatchResult();
+                    result.name = name;
+                    result.code = 204;
+                    results.add(result);
+                } catch (ApiException ex) {
+                    results.add(BatchResult.failure(name, ex.getCode(), ex.getMessage()));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String holderKey(String lockName, String id) {
+        // Lock names can't contain a '/', they are a path segment.
+        return lockName + "/" + id;
+    }
+
+    // Notes whether this server holds the lock, as of l.
+    private void track(String lockName, Lock l) {
+        if (l != null && hostname.equals(l.spec.owner)) {
+            held.put(lockName, l.spec.getExpiryMillis());
+        } else {
+            held.remove(lockName);
+        }
+    }
+
+    // Whether, as far as we know, this server still holds the lock or place.
+    private boolean holding(String key) {
+        Long expiry = held.get(key);
+        if (expiry != null && expiry < System.currentTimeMillis()) {
+            held.remove(key, expiry);
+            return false;
+        }
+        return expiry != null;
+    }
+
+    // Anything to do with a lock we hold goes first, as it is how a holder
+    // renews (a GET and then a PUT) or releases it. Then acquisitions, then
+    // other reads.
+    private Admission.Priority priority(String lockName, HttpExchange t) throws IOException {
+        String method = t.getRequestMethod();
+        if (method.equals("DELETE")) {
+            return Admission.Priority.RENEW;
+        }
+        String id = method.equals("PUT") ? parseQuery(t.getRequestURI().getRawQuery()).get("holder") : null;
+        if (holding(id == null ? lockName : holderKey(lockName, id))) {
+            return Admission.Priority.RENEW;
+        }
+        return method.equals("GET") ? Admission.Priority.READ : Admission.Priority.ACQUIRE;
+    }
+
+    private Admission.Priority priority(BatchRequest req) {
+        if (req.names != null) {
+            for (String name : req.names) {
+                if (!holding(name)) {
+                    return Admission.Priority.ACQUIRE;
+                }
+            }
+            return Admission.Priority.RENEW;
+        }
+        return req.release != null ? Admission.Priority.RENEW : Admission.Priority.READ;
+    }
+
+    private static String remote(HttpExchange t) {
+        return t.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private void sendRejected(Admission.Rejected ex, HttpExchange t) throws IOException {
+        t.getResponseHeaders().set("Retry-After", Long.toString((ex.retryAfterMillis + 999) / 1000));
+        sendResponse(429, error(gson, ex.getMessage()), t);
+    }
+
+    // Reads the lock, returning null if it doesn't exist.
+    private Lock read(String lockName) throws ApiException, IOException {
+        try {
+            return client.getLock(lockName);
+        } catch (ApiException ex) {
+            if (ex.getCode() != 404) {
+                throw ex;
+            }
+            return null;
+        }
+    }
+
+    // Reads the lock and takes it over or renews it if acquire() says so,
+    // returning the lock as it now stands.
+    private Lock put(String lockName) throws ApiException, IOException {
+        Lock l = read(lockName);
+        String previousOwner = l == null ? null : l.spec.owner;
+        Lock next = acquire(lockName, l);
+        if (next == null) {
+            return l;
+        }
+        l = (l == null) ? client.createLock(next) : client.updateLock(next);
+        if (!hostname.equals(previousOwner)) {
+            transitions.labels(lockName).inc();
+        }
+        return l;
+    }
+
+    public void handleLockServe(final String lockName, HttpExchange t) throws IOException {
+        // The same Admission throughout, should setAdmission() replace it.
+        Admission admission = this.admission;
+        Admission.Permit permit;
+        try {
+            permit = admission.admit(priority(lockName, t), remote(t));
+        } catch (Admission.Rejected ex) {
+            sendRejected(ex, t);
+            return;
+        }
+        try {
+            Lock l;
+            if (!t.getRequestMethod().equals("GET")) {
+                Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+                if (query.get("holder") != null) {
+                    handleHolder(lockName, query, t);
+                    return;
+                }
+            }
+            switch (t.getRequestMethod()) {
+            case "GET":
+                Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+                String match = t.getRequestHeaders().getFirst("If-None-Match");
+                if (match != null && !query.containsKey("wait") && notModified(lockName, match, t)) {
+                    return;
+                }
+                l = reads.execute(lockName, () -> read(lockName));
+                if (l == null) {
+                    sendResponse(404, error(gson, "Not found."), t);
+                    return;
+                }
+                long wait = waitMillis(query, l);
+                if (wait > 0) {
+                    // Waiting puts no load on storage, don't hold up others.
+                    permit.close();
+                    try {
+                        admission.startWait();
+                    } catch (Admission.Rejected ex) {
+                        sendRejected(ex, t);
+                        return;
+                    }
+                    String version = query.get("resourceVersion");
+                    if (version == null || version.isEmpty()) {
+                        version = l.metadata.getResourceVersion();
+                    }
+                    // A renewal changes the lock's version but is nothing a
+                    // contender can act on, so keep waiting through renewals
+                    // until the lock changes hands, is released or expires.
+                    // Only if the caller has seen the lock as it is now.
+                    boolean seen = version.equals(l.metadata.getResourceVersion());
+                    long until = System.currentTimeMillis() + requestedWait(query);
+                    Lock before = l;
+                    try {
+                        l = client.waitLock(lockName, version, wait);
+                        while (seen && !l.metadata.getResourceVersion().equals(version)) {
+                            long now = System.currentTimeMillis();
+                            if (!Lock.renewed(before, l, now)) {
+                                break;
+                            }
+                            wait = Math.min(until, l.spec.getExpiryMillis()) - now;
+                            if (wait <= 0) {
+                                break;
+                            }
+                            version = l.metadata.getResourceVersion();
+                            l = client.waitLock(lockName, version, wait);
+                        }
+                    } catch (ApiException ex) {
+                        if (ex.getCode() != 404) {
+                            throw ex;
+                        }
+                        sendResponse(404, error(gson, "Not found."), t);
+                        return;
+                    } finally {
+                        admission.endWait();
+                    }
+                }
+                String etag = etag(l.metadata.getResourceVersion());
+                if (match != null && matches(match, etag)) {
+                    sendNotModified(etag, t);
+                    return;
+                }
+                t.getResponseHeaders().set("ETag", etag);
+                sendJson(200, gson, l, t);
+                break;
+            case "POST":
+                if (read(lockName) != null) {
+                    sendResponse(409, error(gson, "Conflict"), t);
+                    return;
+                }
+                l = createLock(lockName, hostname, ttl);
+                l = client.createLock(l);
+                sendJson(200, gson, l, t);
+                break;
+            case "PUT":
+                l = puts.execute(lockName, () -> put(lockName));
+                track(lockName, l);
+                sendJson(l.spec.owner.equals(hostname) ? 200 : 409, gson, l, t);
+                break;
+            case "DELETE":
+                // Only the owner may release a lock, and only the version it
+                // read, so a lock that just changed hands is left alone.
+                l = read(lockName);
+                if (l == null) {
+                    sendResponse(404, error(gson, "Not found."), t);
+                } else if (!l.spec.owner.equals(hostname)) {
+                    sendJson(409, gson, l, t);
+                } else {
+                    client.releaseLock(l);
+                    held.remove(lockName);
+                    Log.info("Released lock " + lockName);
+                    t.sendResponseHeaders(204, -1);
+                    t.close();
+                }
+                break;
+            default:
+                sendResponse(405, error(gson, "Method not allowed: " + t.getRequestMethod()), t);
+            }
+        } catch (ApiException ex) {
+            Log.error("Storage error", ex);
+            sendResponse(ex.getCode(), error(gson, ex.toString()), t);
+        } catch (IOException ex) {
+            Log.error("Request failed", ex);
+            sendResponse(500, error(gson, "An error occurred: " + ex), t);
+        } finally {
+            permit.close();
+        }
+    }
+
+    private void handle(HttpExchange t) throws IOException {
+        if (Log.isDebug()) {
+            Log.debug(t.getRequestMethod() + " " + t.getRequestURI());
+        }
+        String path = t.getRequestURI().getPath();
+        if (path.equals("/metrics")) {
+            handleMetrics(t);
+            return;
+        }
+        if (path.equals("/locks:batch")) {
+            handleBatch(t);
+            return;
+        }
+        String name = LockServer.validateRequest(gson, t);
+        if (name == null) {
+            return;
+        }
+        handleLockServe(name, t);
+    }
+
+    public void handleMetrics(HttpExchange t) throws IOException {
+        StringWriter w = new StringWriter();
+        MetricsRegistry.defaultRegistry.write(w);
+        t.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+        sendResponse(200, w.toString(), t);
+    }
+
+    public void run() {
+        // Responses are small and written as headers then body, without
+        // TCP_NODELAY the body waits out the client's delayed ACK (~40ms).
+        // The JDK reads this once, when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), backlog);
+            server.createContext("/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange t) throws IOException {
+                    JfrEvent event = requestEvent.begin();
+                    long start = System.nanoTime();
+                    try {
+                        LockServer.this.handle(t);
+                    } finally {
+                        requestDuration.labels(t.getRequestMethod(), Integer.toString(t.getResponseCode()))
+                            .observeSince(start);
+                        event.set(0, t.getRequestMethod()).set(1, t.getRequestURI().getPath())
+                            .set(2, t.getResponseCode()).commit();
+                    }
+                }
+            });
+            // Storage calls and GETs with ?wait= block, so exchanges can't all
+            // share the dispatcher thread.
+            if (executor == null) {
+                executor = virtualThreads();
+            }
+            if (executor == null) {
+                executor = workerPool(DEFAULT_THREADS, DEFAULT_QUEUE);
+            }
+            if (executor instanceof ThreadPoolExecutor) {
+                int threads = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+                maxWaiting = Math.max(1, (int) (threads * MAX_WAITING_SHARE));
+                admission.setMaxWaiting(maxWaiting);
+            }
+            server.setExecutor(executor);
+            server.start();
+        } catch (IOException ex) {
+            Log.error("Failed to start LockServer on port " + port, ex);
+        }
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public static LockServer newLockServer(final StorageInterface client, int port,
+            final String hostname, final long ttl) throws IOException {
+        LockServer lockServe = new LockServer(client, hostname, ttl, port);
+        lockServe.run();
+        return lockServe;
+    }
 }
\ No newline at end of file
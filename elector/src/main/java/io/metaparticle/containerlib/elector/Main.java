@@ -1,37 +1,101 @@
-package io.metaparticle.containerlib.elector;
-
-import com.google.gson.Gson;
-
-import io.kubernetes.client.ApiClient;
-import io.kubernetes.client.ApiException;
-import io.kubernetes.client.Configuration;
-import io.kubernetes.client.util.Config;
-
-import java.io.IOException;
-import java.net.InetAddress;
-
-public class Main {
-    public static void main(String[] args) throws IOException, ApiException {
-        final Gson gson = new Gson();
-        final ApiClient k8sClient = Config.defaultClient();
-        Configuration.setDefaultApiClient(k8sClient);
-        final StorageInterface client = new KubernetesStorage(k8sClient);
-        String host = InetAddress.getLocalHost().getHostName();
-
-        //final StorageInterface client = new MemoryStorage();
-        //String host = "foo";
-
-        if (args.length > 0) {
-            host = args[0];
-        }
-        final String hostname = host;
-        final long ttl = 30 * 1000;
-
-        LockServer ls = new LockServer(client, hostname, ttl, 13131);        
-        new Thread(ls).start();
-        
-        // This is just for debugging....
-        LockServer ls2 = new LockServer(client, hostname + "baz", ttl, 13132);
-        ls2.run();
-    }
-}
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.Configuration;
+import io.kubernetes.client.util.Config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class Main {
+    public static void main(String[] args) throws IOException, ApiException {
+        final Gson gson = new Gson();
+        final StorageInterface client;
+        String raftSelf = System.getenv("LOCKSERVER_RAFT_SELF");
+        if (raftSelf != null) {
+            // A standalone cluster: this node's raft URL, e.g. http://10.0.0.1:7070,
+            // and LOCKSERVER_RAFT_PEERS a comma separated list of every node's URL.
+            client = new InstrumentedStorage("raft",
+                new RaftStorage(raftSelf, Arrays.asList(env("LOCKSERVER_RAFT_PEERS", raftSelf).split(","))));
+        } else if (System.getenv("LOCKSERVER_DATA_DIR") != null) {
+            // A single node that keeps its locks on local disk.
+            client = new InstrumentedStorage("file", new FileStorage(Paths.get(System.getenv("LOCKSERVER_DATA_DIR"))));
+        } else {
+            final ApiClient k8sClient = Config.defaultClient();
+            Configuration.setDefaultApiClient(k8sClient);
+            // "create" checks for (and creates) the Lock CRD before serving,
+            // "background" does so while the server starts and the cache
+            // fills, and "skip" assumes it was installed with the deployment.
+            String crd = env("LOCKSERVER_CRD", "create");
+            KubernetesStorage storage = new KubernetesStorage(
+                k8sClient, env("LOCKSERVER_NAMESPACE", "default"), crd.equals("create"));
+            if (crd.equals("background")) {
+                KubernetesStorage.createResourceInBackground(k8sClient);
+            }
+            // The informer lists the locks on its own thread, in parallel with the rest of startup.
+            client = new InstrumentedStorage("kubernetes", new CachingStorage(storage));
+        }
+        // In a pod HOSTNAME is the pod name, which saves a reverse lookup.
+        String host = env("HOSTNAME", null);
+        if (host == null) {
+            host = InetAddress.getLocalHost().getHostName();
+        }
+
+        //final StorageInterface client = new MemoryStorage();
+        //String host = "foo";
+
+        if (args.length > 0) {
+            host = args[0];
+        }
+        final String hostname = host;
+        final long ttl = env("LOCKSERVER_TTL_MILLIS", 30 * 1000);
+
+        int idleSeconds = env("LOCKSERVER_IDLE_SECONDS", 0);
+        if (idleSeconds > 0) {
+            LockServer.setKeepAlive(idleSeconds, env("LOCKSERVER_MAX_IDLE_CONNECTIONS", 200));
+        }
+        // 0 threads means virtual threads if the JDK has them, a default pool otherwise.
+        int threads = env("LOCKSERVER_THREADS", 0);
+        int queue = env("LOCKSERVER_QUEUE", 1024);
+        int backlog = env("LOCKSERVER_BACKLOG", 0);
+        // 0 keeps the default admission control, see LockServer.setAdmission().
+        int maxInFlight = env("LOCKSERVER_MAX_IN_FLIGHT", 0);
+        int maxQueued = env("LOCKSERVER_MAX_QUEUED", 512);
+        int maxPerClient = env("LOCKSERVER_MAX_PER_CLIENT", 128);
+
+        int port = env("LOCKSERVER_PORT", 13131);
+        LockServer ls = new LockServer(client, hostname, ttl, port);        
+        // Each server sizes its budget of waiting GETs from its own pool, so
+        // the two mustn't share one.
+        ls.setExecutor(threads > 0 ? LockServer.workerPool(threads, queue) : null);
+        ls.setBacklog(backlog);
+        if (maxInFlight > 0) {
+            ls.setAdmission(maxInFlight, maxQueued, maxPerClient);
+        }
+        new Thread(ls).start();
+        
+        // This is just for debugging....
+        LockServer ls2 = new LockServer(client, hostname + "baz", ttl, port + 1);
+        ls2.setExecutor(threads > 0 ? LockServer.workerPool(threads, queue) : null);
+        ls2.setBacklog(backlog);
+        if (maxInFlight > 0) {
+            ls2.setAdmission(maxInFlight, maxQueued, maxPerClient);
+        }
+        ls2.run();
+    }
+
+    private static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int env(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -1,56 +1,425 @@
-package io.metaparticle.containerlib.elector;
-
-import io.kubernetes.client.ApiException;
-
-import java.io.IOException;
-import java.util.HashMap;
-
-public class MemoryStorage implements StorageInterface {
-    HashMap<String, Lock> map;
-    public MemoryStorage() {
-        map = new HashMap<>();
-    }
-
-    @Override
-    public Lock createLock(Lock l) throws ApiException, IOException  {
-        String key = l.metadata.getName();
-        synchronized (map) {
-            if (map.containsKey(key)) {
-                throw new ApiException(409, "Lock exists!");
-            }
-            l.metadata.resourceVersion("0");
-            map.put(key, l);
-        }
-        return l;
-    }
-
-    @Override
-    public Lock updateLock(Lock l) throws ApiException, IOException {
-        String key = l.metadata.getName();
-        synchronized (map) {
-            Lock curr = map.get(key);
-            if (curr == null) {
-                throw new ApiException(404, "Lock doesn't exist!");
-            }
-            if (!curr.metadata.getResourceVersion().equals(l.metadata.getResourceVersion())) {
-                throw new ApiException(409, "Conflict!");
-            }
-            int i = Integer.parseInt(l.metadata.getResourceVersion());
-            i = i + 1;
-            l.metadata.resourceVersion(Integer.toString(i));
-            map.put(key, l);
-            return l;            
-        }
-    }
-
-    @Override
-    public Lock getLock(String name) throws ApiException, IOException {
-        String key = name;
-        synchronized (map) {
-            if (!map.containsKey(key)) {
-                throw new ApiException(404, "Not found");
-            }
-            return map.get(name);
-        }
-    }
-}
\ No newline at end of file
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.metaparticle.metrics.Counter;
+import io.metaparticle.metrics.MetricsRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps locks in a ConcurrentHashMap with no global lock: each name has a slot
+// holding its current version, and creates and updates are a compare-and-swap
+// on that slot, so requests for different names never contend.
+//
+// Each slot keeps a timer on an ExpiryWheel armed for its lock's expiry. When
+// a lock expires without having been written again, waiters are woken straight
+// away, and if it is still untouched GC_MILLIS later its record is removed.
+// A renewal only moves the expiry later, so it leaves the armed timer alone
+// and the timer re-arms itself when it fires.
+public class MemoryStorage implements StorageInterface, Closeable {
+    // Told about every write, so that FileStorage can log it.
+    interface Journal {
+        // Turns a write into a log record before it is made, throwing if it
+        // can't be logged. lock is null for a release.
+        byte[] encode(String name, Lock lock, long version) throws ApiException;
+
+        // Appends a record once its write is visible. The writes of any one
+        // name arrive in version order.
+        void written(byte[] record);
+    }
+
+    // How long an expired or released lock is kept before its record is removed.
+    private static final long GC_MILLIS = Long.getLong("io.metaparticle.memory.gcMillis", 10 * 60 * 1000);
+    private static final long TICK_MILLIS = 10;
+
+    private static final Counter expirations = MetricsRegistry.defaultRegistry.counter(
+        "lockserver_memory_expirations_total", "Locks in MemoryStorage that expired without being renewed.");
+    private static final Counter collected = MetricsRegistry.defaultRegistry.counter(
+        "lockserver_memory_collected_total", "Expired or released lock records removed from MemoryStorage.");
+
+    // An immutable version of a lock. lock.metadata.resourceVersion is version as
+    // a string. A released lock leaves an entry with a null lock behind, to wake
+    // waiters, until it is collected.
+    private static class Entry {
+        final Lock lock;
+        final long version;
+        // When the record may be collected, if it isn't written again.
+        final long collectAt;
+
+        Entry(Lock lock, long version, long collectAt) {
+            this.lock = lock;
+            this.version = version;
+            this.collectAt = collectAt;
+        }
+    }
+
+    // A collected slot is swapped to this before it is taken out of the map,
+    // so that a writer still holding the slot fails and starts again.
+    private static final Entry REMOVED = new Entry(null, -1, 0);
+
+    private static class Slot {
+        final AtomicReference<Entry> current = new AtomicReference<>();
+        // waitLock waits on changed. Not the slot's monitor, which would pin a
+        // virtual thread to its carrier for the whole wait.
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        // The number of threads in waitLock, so writers only signal when needed.
+        volatile int waiters;
+        // The deadline of the earliest timer armed for this slot, MAX_VALUE if none.
+        final AtomicLong armedAt = new AtomicLong(Long.MAX_VALUE);
+        // The last version an expiry was counted for, only touched by the wheel.
+        long expiredVersion = -1;
+    }
+
+    ConcurrentHashMap<String, Slot> map;
+    // A create takes the next number from here as the high half of its version,
+    // and writes after it count up in the low half. So a name that is collected
+    // and created again never repeats a version, without a shared counter on
+    // every write.
+    private final AtomicLong creates = new AtomicLong();
+    private final ExpiryWheel wheel;
+    private final Journal journal;
+
+    public MemoryStorage() {
+        this(null);
+    }
+
+    MemoryStorage(Journal journal) {
+        map = new ConcurrentHashMap<>();
+        wheel = new ExpiryWheel(TICK_MILLIS, this::fire);
+        this.journal = journal;
+    }
+
+    // Stops the thread that expires and collects locks. The locks stay
+    // readable, but waiters are no longer woken as they expire.
+    @Override
+    public void close() {
+        wheel.stop();
+    }
+
+    // Callers modify the locks they are handed, so stored locks are never shared.
+    static Lock copy(Lock l) {
+        Lock c = new Lock();
+        c.metadata = new V1ObjectMeta()
+            .name(l.metadata.getName())
+            .namespace(l.metadata.getNamespace())
+            .resourceVersion(l.metadata.getResourceVersion());
+        if (l.spec != null) {
+            c.spec = l.spec.copy();
+        }
+        return c;
+    }
+
+    private static long parseVersion(String resourceVersion) {
+        try {
+            return Long.parseLong(resourceVersion);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // The live entry for a name, or null if there is none.
+    private Entry current(String name) {
+        Slot slot = map.get(name);
+        return slot == null ? null : live(slot.current.get());
+    }
+
+    private static Entry live(Entry e) {
+        return (e == null || e.lock == null) ? null : e;
+    }
+
+    // Swaps in the next version of a lock, wakes anyone waiting on it and
+    // makes sure a timer is armed for its expiry or collection.
+    private boolean swap(String name, Slot slot, Entry expect, Entry next) throws ApiException {
+        if (journal == null) {
+            if (!slot.current.compareAndSet(expect, next)) {
+                return false;
+            }
+        } else {
+            byte[] record = journal.encode(name, next.lock, next.version);
+            // Logged under the slot's lock, so that a later version of a name
+            // can never reach the log ahead of an earlier one.
+            slot.lock.lock();
+            try {
+                if (!slot.current.compareAndSet(expect, next)) {
+                    return false;
+                }
+                journal.written(record);
+            } finally {
+                slot.lock.unlock();
+            }
+        }
+        wake(slot);
+        arm(name, slot, next.lock == null ? next.collectAt : expiry(next.lock));
+        return true;
+    }
+
+    // Puts back a lock, or a release if lock is null, that FileStorage read
+    // from its log at version, unless a later version is already there.
+    // Only used before the storage is handed out.
+    void restore(String name, Lock lock, long version) {
+        creates.accumulateAndGet(version >>> 32, Math::max);
+        Slot slot = map.computeIfAbsent(name, k -> new Slot());
+        Entry curr = slot.current.get();
+        if (curr != null && curr.version >= version) {
+            return;
+        }
+        if (lock != null) {
+            lock.metadata.resourceVersion(Long.toString(version));
+        }
+        Entry next = lock == null
+            ? new Entry(null, version, System.currentTimeMillis() + GC_MILLIS)
+            : entry(lock, version);
+        slot.current.set(next);
+        arm(name, slot, lock == null ? next.collectAt : expiry(lock));
+    }
+
+    // The live locks, for FileStorage's snapshots. They're shared, not copied,
+    // so mustn't be modified.
+    List<Lock> locks() {
+        List<Lock> locks = new ArrayList<>(map.size());
+        for (Slot slot : map.values()) {
+            Entry e = live(slot.current.get());
+            if (e != null) {
+                locks.add(e.lock);
+            }
+        }
+        return locks;
+    }
+
+    // The number of creates so far, which versions are made from.
+    long creates() {
+        return creates.get();
+    }
+
+    void restoreCreates(long count) {
+        creates.accumulateAndGet(count, Math::max);
+    }
+
+    static long expiry(Lock l) {
+        return l.spec == null || l.spec.expiry == null ? Long.MAX_VALUE : l.spec.getExpiryMillis();
+    }
+
+    // Written locks may be collected GC_MILLIS after they expire.
+    private static Entry entry(Lock l, long version) {
+        long expiry = expiry(l);
+        return new Entry(l, version, expiry > Long.MAX_VALUE - GC_MILLIS ? Long.MAX_VALUE : expiry + GC_MILLIS);
+    }
+
+    private static void wake(Slot slot) {
+        if (slot.waiters > 0) {
+            slot.lock.lock();
+            try {
+                slot.changed.signalAll();
+            } finally {
+                slot.lock.unlock();
+            }
+        }
+    }
+
+    // Schedules a timer for the slot at deadline, unless one is already armed
+    // at or before it, in which case that one re-arms when it fires.
+    private void arm(String name, Slot slot, long deadline) {
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        while (true) {
+            long at = slot.armedAt.get();
+            if (at <= deadline) {
+                return;
+            }
+            if (slot.armedAt.compareAndSet(at, deadline)) {
+                wheel.schedule(name, deadline);
+                return;
+            }
+        }
+    }
+
+    // Called by the wheel when a timer for a slot is due: counts and wakes
+    // waiters for an expiry, collects a record that has been left alone for
+    // long enough, and re-arms the timer for whatever is due next.
+    private void fire(String name, long deadline) {
+        Slot slot = map.get(name);
+        if (slot == null) {
+            return;
+        }
+        slot.armedAt.compareAndSet(deadline, Long.MAX_VALUE);
+        Entry e = slot.current.get();
+        if (e == null || e == REMOVED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (e.lock != null) {
+            long expiry = expiry(e.lock);
+            if (expiry > now) {
+                arm(name, slot, expiry);
+                return;
+            }
+            if (slot.expiredVersion != e.version) {
+                slot.expiredVersion = e.version;
+                expirations.labels().inc();
+                wake(slot);
+            }
+        }
+        if (e.collectAt > now) {
+            arm(name, slot, e.collectAt);
+            return;
+        }
+        if (slot.current.compareAndSet(e, REMOVED)) {
+            map.remove(name, slot);
+            collected.labels().inc();
+            wake(slot);
+        }
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException  {
+        String key = l.metadata.getName();
+        while (true) {
+            Slot slot = map.get(key);
+            if (slot == null) {
+                slot = map.computeIfAbsent(key, k -> new Slot());
+            }
+            Entry prev = slot.current.get();
+            if (prev == REMOVED) {
+                // Collected under us, help take it out of the map and retry.
+                map.remove(key, slot);
+                continue;
+            }
+            if (live(prev) != null) {
+                throw new ApiException(409, "Lock exists!");
+            }
+            long version = creates.incrementAndGet() << 32;
+            l.metadata.resourceVersion(Long.toString(version));
+            if (swap(key, slot, prev, entry(copy(l), version))) {
+                return l;
+            }
+            if (slot.current.get() != REMOVED) {
+                throw new ApiException(409, "Lock exists!");
+            }
+        }
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        String key = l.metadata.getName();
+        Slot slot = map.get(key);
+        Entry curr = slot == null ? null : live(slot.current.get());
+        if (curr == null) {
+            throw new ApiException(404, "Lock doesn't exist!");
+        }
+        long version = parseVersion(l.metadata.getResourceVersion());
+        if (curr.version != version) {
+            throw new ApiException(409, "Conflict!");
+        }
+        Lock next = copy(l);
+        next.metadata.resourceVersion(Long.toString(version + 1));
+        if (!swap(key, slot, curr, entry(next, version + 1))) {
+            throw new ApiException(409, "Conflict!");
+        }
+        l.metadata.resourceVersion(Long.toString(version + 1));
+        return l;
+    }
+
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        String key = l.metadata.getName();
+        Slot slot = map.get(key);
+        Entry curr = slot == null ? null : live(slot.current.get());
+        if (curr == null) {
+            throw new ApiException(404, "Lock doesn't exist!");
+        }
+        if (curr.version != parseVersion(l.metadata.getResourceVersion())
+                || !swap(key, slot, curr, new Entry(null, curr.version + 1, System.currentTimeMillis() + GC_MILLIS))) {
+            throw new ApiException(409, "Conflict!");
+        }
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        Entry curr = current(name);
+        if (curr == null) {
+            throw new ApiException(404, "Not found");
+        }
+        return copy(curr.lock);
+    }
+
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        Entry curr = current(name);
+        if (curr == null) {
+            throw new ApiException(404, "Not found");
+        }
+        return Long.toString(curr.version);
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        Slot slot = map.get(name);
+        if (slot == null) {
+            throw new ApiException(404, "Not found");
+        }
+        long version = parseVersion(resourceVersion);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Entry curr;
+        slot.lock.lock();
+        try {
+            slot.waiters++;
+            curr = live(slot.current.get());
+            // Wait until the lock changes, or the wheel wakes us as it expires.
+            while (curr != null && curr.version == version && expiry(curr.lock) > System.currentTimeMillis()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                slot.changed.await(remaining, TimeUnit.MILLISECONDS);
+                curr = live(slot.current.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + name);
+        } finally {
+            slot.waiters--;
+            slot.lock.unlock();
+        }
+        if (curr == null) {
+            throw new ApiException(404, "Not found");
+        }
+        return copy(curr.lock);
+    }
+
+    // Each lock in the batch is its own compare-and-swap, there is no
+    // atomicity across locks (the same as KubernetesStorage).
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        List<BatchResult> results = new ArrayList<>(names.size());
+        for (String name : names) {
+            Entry curr = current(name);
+            Lock next = updater.update(name, curr == null ? null : copy(curr.lock));
+            try {
+                if (next == null) {
+                    results.add(curr == null
+                        ? BatchResult.failure(name, 404, "Not found")
+                        : BatchResult.success(name, copy(curr.lock)));
+                } else if (curr == null) {
+                    results.add(BatchResult.success(name, createLock(next)));
+                } else {
+                    results.add(BatchResult.success(name, updateLock(next)));
+                }
+            } catch (ApiException ex) {
+                results.add(BatchResult.failure(name, ex.getCode(), ex.getMessage()));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,757 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.sun.net.httpserver.HttpServer;
+import io.metaparticle.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+// The consensus half of RaftStorage: leader election and log replication as in
+// the Raft paper, over JSON on HTTP. Each node is named by the URL its raft
+// endpoints are served on, and commands are opaque strings that are handed to
+// a StateMachine in log order once a majority has them.
+//
+// The leader keeps one replicator thread per follower, each with at most one
+// AppendEntries in flight carrying everything the follower is missing, so
+// commands proposed while a round trip is outstanding go out together in the
+// next one. Every acknowledged round also extends the leader's lease: a
+// follower doesn't vote for anyone within ELECTION_MILLIS of hearing from the
+// leader, so for LEASE_MILLIS after a majority acknowledged a request sent at
+// time t, no other leader can have been elected and reads can be served from
+// the local state.
+//
+// State is only kept in memory, the log is compacted into a snapshot of the
+// state machine every SNAPSHOT_ENTRIES entries. A node starts as a non-voter,
+// since it may have acknowledged entries before a restart that it no longer
+// has, and becomes a voter once it has caught up with a leader. If a majority
+// of the cluster are non-voters at once nobody can be elected, which is how a
+// new cluster starts but also means state was lost along with that majority,
+// so they all become voters and carry on from whatever the others have. They
+// only vote for, or stand as, a candidate whose log is at least as long as the
+// longest they saw among the nodes they could reach, so that a surviving node
+// with entries is elected and brings them back rather than being truncated by
+// one of them. A node that can't reach anyone with that log any more lowers
+// the bar to what it can reach, as those entries are then lost either way.
+class RaftNode {
+    interface StateMachine {
+        // Applies a committed command and returns the result for its proposer.
+        BatchResult apply(long index, String command);
+        String snapshot();
+        void restore(String snapshot);
+    }
+
+    private enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    private static final long HEARTBEAT_MILLIS = 50;
+    // Elections time out after between ELECTION_MILLIS and twice that.
+    private static final long ELECTION_MILLIS = 300;
+    // Shorter than ELECTION_MILLIS, to allow for clocks running at different rates.
+    private static final long LEASE_MILLIS = 250;
+    private static final int RPC_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_BATCH = 1024;
+    private static final int SNAPSHOT_ENTRIES = 10000;
+
+    static class Entry {
+        @SerializedName("term")
+        long term;
+        // null for the entry a new leader appends to commit the entries before it.
+        @SerializedName("command")
+        String command;
+
+        Entry(long term, String command) {
+            this.term = term;
+            this.command = command;
+        }
+    }
+
+    static class VoteRequest {
+        long term;
+        String candidate;
+        long lastIndex;
+        long lastTerm;
+    }
+
+    static class VoteResponse {
+        long term;
+        boolean granted;
+    }
+
+    static class AppendRequest {
+        long term;
+        String leader;
+        long prevIndex;
+        long prevTerm;
+        List<Entry> entries;
+        long commit;
+    }
+
+    static class SnapshotRequest {
+        long term;
+        String leader;
+        long index;
+        long lastTerm;
+        String data;
+    }
+
+    static class AppendResponse {
+        long term;
+        boolean success;
+        // The last index known to match the leader's log, if success.
+        long match;
+        // Where the leader should try next, if not.
+        long conflict;
+    }
+
+    static class Status {
+        long term;
+        boolean voter;
+        String leader;
+        long lastIndex;
+        long lastTerm;
+    }
+
+    private final String id;
+    private final List<String> peers;
+    private final StateMachine machine;
+    private final Gson gson = LockAdapter.newGson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+    private volatile boolean running = true;
+
+    // Everything below is guarded by this.
+    private long term;
+    private String votedFor;
+    private Role role = Role.FOLLOWER;
+    private String leader;
+    private long leaderContact = Long.MIN_VALUE / 2;
+    private boolean voter;
+    private int votes;
+    private long electionDeadline;
+    // The longest log seen on another node when this one became a voter, see checkVoters().
+    private long floorIndex;
+    private long floorTerm;
+
+    // log.get(i) is the entry at index snapshotIndex + 1 + i.
+    private final ArrayList<Entry> log = new ArrayList<>();
+    private long snapshotIndex;
+    private long snapshotTerm;
+    private String snapshot;
+    private long commitIndex;
+    private long lastApplied;
+
+    // Leader state: the first index of this term and when it was won, and per
+    // follower the next index to send, the last index known to match and when the last
+    // acknowledged request was sent.
+    private long leaderStart;
+    private long leaderSince;
+    private final Map<String, Long> nextIndex = new HashMap<>();
+    private final Map<String, Long> matchIndex = new HashMap<>();
+    private final Map<String, Long> ackedAt = new HashMap<>();
+    private final Map<Long, CompletableFuture<BatchResult>> proposals = new HashMap<>();
+
+    RaftNode(String id, List<String> peers, int port, StateMachine machine) throws IOException {
+        this.id = id;
+        this.peers = new ArrayList<>(peers);
+        this.peers.remove(id);
+        this.machine = machine;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "raft-rpc");
+            t.setDaemon(true);
+            return t;
+        });
+        // Replication is small requests on kept-alive connections, which
+        // Nagle's algorithm holds back waiting for delayed acks. The JDK server
+        // reads this once, so it only takes if set before any server starts.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        serve("/raft/vote", VoteRequest.class, this::vote);
+        serve("/raft/append", AppendRequest.class, this::append);
+        serve("/raft/snapshot", SnapshotRequest.class, this::installSnapshot);
+        serve("/raft/status", null, r -> status());
+    }
+
+    void start() {
+        synchronized (this) {
+            resetElection();
+        }
+        server.start();
+        thread("raft-ticker", this::tick);
+        for (String peer : peers) {
+            thread("raft-replicator-" + peer, () -> replicate(peer));
+        }
+    }
+
+    void stop() {
+        running = false;
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (this) {
+            failProposals();
+            notifyAll();
+        }
+    }
+
+    private static void thread(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Serves JSON requests of type on path; a null type means the body is ignored.
+    <Q> void serve(String path, Class<Q> type, Function<Q, Object> handler) {
+        server.createContext(path, exchange -> {
+            try {
+                Q request = null;
+                if (type != null) {
+                    try (Reader r = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                        request = gson.fromJson(r, type);
+                    }
+                }
+                byte[] body = gson.toJson(handler.apply(request)).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (RuntimeException ex) {
+                Log.error("Failed to serve " + path, ex);
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    // POSTs body as JSON to a node's path, or GETs it if body is null.
+    <T> T call(String node, String path, Object body, Class<T> type, int timeoutMillis) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(node + path).openConnection();
+        c.setConnectTimeout(timeoutMillis);
+        c.setReadTimeout(timeoutMillis);
+        if (body != null) {
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/json");
+            try (Writer w = new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8)) {
+                gson.toJson(body, w);
+            }
+        }
+        int code = c.getResponseCode();
+        if (code != 200) {
+            InputStream err = c.getErrorStream();
+            if (err != null) {
+                err.close();
+            }
+            throw new IOException(node + path + " returned " + code);
+        }
+        try (Reader r = new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8)) {
+            return gson.fromJson(r, type);
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private int majority() {
+        return (peers.size() + 1) / 2 + 1;
+    }
+
+    private long lastIndex() {
+        return snapshotIndex + log.size();
+    }
+
+    private long termAt(long index) {
+        if (index == snapshotIndex) {
+            return snapshotTerm;
+        }
+        return log.get((int) (index - snapshotIndex - 1)).term;
+    }
+
+    // Whether a log ending at lastIndex in lastTerm is at least as up to date as
+    // one ending at otherIndex in otherTerm.
+    private static boolean atLeast(long lastIndex, long lastTerm, long otherIndex, long otherTerm) {
+        return lastTerm > otherTerm || (lastTerm == otherTerm && lastIndex >= otherIndex);
+    }
+
+    private void resetElection() {
+        electionDeadline = now() + ELECTION_MILLIS + (long) (random.nextDouble() * ELECTION_MILLIS);
+    }
+
+    // The URL of the current leader, or null if it isn't known.
+    synchronized String leader() {
+        return leader;
+    }
+
+    synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    // Appends a command to the log, returning a future that completes with its
+    // result once applied, or fails if leadership is lost first. Returns null
+    // if this node isn't the leader.
+    synchronized CompletableFuture<BatchResult> propose(String command) {
+        if (role != Role.LEADER) {
+            return null;
+        }
+        log.add(new Entry(term, command));
+        CompletableFuture<BatchResult> f = new CompletableFuture<>();
+        proposals.put(lastIndex(), f);
+        notifyAll();
+        advanceCommit();
+        return f;
+    }
+
+    // Waits until this node may serve a read from its own state: it is the
+    // leader, everything committed before its term has been applied, and it
+    // holds the lease. Returns false if it isn't the leader or can't get the
+    // lease within timeoutMillis.
+    synchronized boolean awaitLease(long timeoutMillis) throws InterruptedException {
+        long deadline = now() + timeoutMillis;
+        while (role == Role.LEADER) {
+            long now = now();
+            if (lastApplied >= leaderStart && quorumAckedAt() + LEASE_MILLIS > now) {
+                return true;
+            }
+            if (now >= deadline) {
+                return false;
+            }
+            wait(Math.min(deadline - now, HEARTBEAT_MILLIS));
+        }
+        return false;
+    }
+
+    // When the oldest of the latest requests acknowledged by a majority was sent.
+    private long quorumAckedAt() {
+        long[] acks = new long[peers.size() + 1];
+        acks[0] = now();
+        int i = 1;
+        for (String peer : peers) {
+            acks[i++] = ackedAt.get(peer);
+        }
+        Arrays.sort(acks);
+        return acks[acks.length - majority()];
+    }
+
+    private void tick() {
+        while (running) {
+            boolean check = false;
+            synchronized (this) {
+                long now = now();
+                if (role == Role.LEADER) {
+                    if (Math.max(quorumAckedAt(), leaderSince) < now - 2 * ELECTION_MILLIS) {
+                        Log.info("Raft leader " + id + " lost touch with a majority, stepping down");
+                        stepDown(term);
+                    }
+                } else if (now >= electionDeadline) {
+                    if (voter && atLeast(lastIndex(), termAt(lastIndex()), floorIndex, floorTerm)) {
+                        startElection();
+                    } else {
+                        resetElection();
+                        check = true;
+                    }
+                }
+            }
+            if (check) {
+                checkVoters();
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    // Makes this node a voter if a majority of the cluster, itself included,
+    // aren't voters, so that no leader can be elected without them. Also
+    // called while a voter's log is behind its floor, to lower the floor if
+    // no node with that log can be reached any more.
+    private void checkVoters() {
+        int nonVoters = 1;
+        long maxTerm = 0;
+        long bestIndex = 0;
+        long bestTerm = 0;
+        for (String peer : peers) {
+            try {
+                Status s = call(peer, "/raft/status", null, Status.class, (int) ELECTION_MILLIS);
+                maxTerm = Math.max(maxTerm, s.term);
+                if (!s.voter) {
+                    nonVoters++;
+                }
+                if (!atLeast(bestIndex, bestTerm, s.lastIndex, s.lastTerm)) {
+                    bestIndex = s.lastIndex;
+                    bestTerm = s.lastTerm;
+                }
+            } catch (IOException ex) {
+                // Unreachable nodes count as voters, they may be up but cut off from us.
+            }
+        }
+        synchronized (this) {
+            if (voter) {
+                if (!atLeast(bestIndex, bestTerm, floorIndex, floorTerm)) {
+                    Log.info("Raft node " + id + " can't reach a node with the log up to " + floorIndex + ", settling for " + bestIndex);
+                }
+                floorIndex = bestIndex;
+                floorTerm = bestTerm;
+            } else if (nonVoters >= majority()) {
+                Log.info("Raft node " + id + " becoming a voter, " + nonVoters + " of " + (peers.size() + 1) + " nodes aren't");
+                voter = true;
+                // We may have voted before a restart, so don't vote again in any term seen so far.
+                term = Math.max(term, maxTerm);
+                votedFor = id;
+                // Others may have entries we lost, wait for one of them to be elected.
+                floorIndex = bestIndex;
+                floorTerm = bestTerm;
+            }
+        }
+    }
+
+    private void startElection() {
+        term++;
+        role = Role.CANDIDATE;
+        votedFor = id;
+        leader = null;
+        votes = 1;
+        resetElection();
+        if (votes >= majority()) {
+            becomeLeader();
+            return;
+        }
+        VoteRequest req = new VoteRequest();
+        req.term = term;
+        req.candidate = id;
+        req.lastIndex = lastIndex();
+        req.lastTerm = termAt(req.lastIndex);
+        for (String peer : peers) {
+            executor.execute(() -> requestVote(peer, req));
+        }
+    }
+
+    private void requestVote(String peer, VoteRequest req) {
+        VoteResponse resp;
+        try {
+            resp = call(peer, "/raft/vote", req, VoteResponse.class, (int) ELECTION_MILLIS);
+        } catch (IOException ex) {
+            return;
+        }
+        synchronized (this) {
+            if (resp.term > term) {
+                stepDown(resp.term);
+            } else if (role == Role.CANDIDATE && term == req.term && resp.granted) {
+                if (++votes >= majority()) {
+                    becomeLeader();
+                }
+            }
+        }
+    }
+
+    private void becomeLeader() {
+        Log.info("Raft node " + id + " is leader for term " + term);
+        role = Role.LEADER;
+        leader = id;
+        for (String peer : peers) {
+            nextIndex.put(peer, lastIndex() + 1);
+            matchIndex.put(peer, 0L);
+            ackedAt.put(peer, Long.MIN_VALUE / 2);
+        }
+        log.add(new Entry(term, null));
+        leaderStart = lastIndex();
+        leaderSince = now();
+        notifyAll();
+        advanceCommit();
+    }
+
+    private void stepDown(long newTerm) {
+        if (newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            leader = null;
+        }
+        if (role != Role.FOLLOWER) {
+            role = Role.FOLLOWER;
+            failProposals();
+        }
+        resetElection();
+    }
+
+    private void failProposals() {
+        for (CompletableFuture<BatchResult> f : proposals.values()) {
+            f.completeExceptionally(new IllegalStateException("Leadership lost"));
+        }
+        proposals.clear();
+    }
+
+    private synchronized VoteResponse vote(VoteRequest r) {
+        VoteResponse resp = new VoteResponse();
+        // Ignore candidates while there's a leader we've heard from, the lease depends on it.
+        if (role == Role.LEADER || (leader != null && now() - leaderContact < ELECTION_MILLIS)) {
+            resp.term = term;
+            return resp;
+        }
+        if (r.term > term) {
+            stepDown(r.term);
+        }
+        resp.term = term;
+        long lastTerm = termAt(lastIndex());
+        boolean upToDate = r.lastTerm > lastTerm || (r.lastTerm == lastTerm && r.lastIndex >= lastIndex());
+        boolean aboveFloor = atLeast(r.lastIndex, r.lastTerm, floorIndex, floorTerm);
+        if (r.term == term && voter && upToDate && aboveFloor && (votedFor == null || votedFor.equals(r.candidate))) {
+            votedFor = r.candidate;
+            resp.granted = true;
+            resetElection();
+        }
+        return resp;
+    }
+
+    // Accepts a request from a leader of term, returning false if it's stale.
+    private boolean follow(long leaderTerm, String leaderId) {
+        if (leaderTerm < term) {
+            return false;
+        }
+        if (leaderTerm > term || role != Role.FOLLOWER) {
+            stepDown(leaderTerm);
+        }
+        leader = leaderId;
+        leaderContact = now();
+        resetElection();
+        return true;
+    }
+
+    private synchronized AppendResponse append(AppendRequest r) {
+        AppendResponse resp = new AppendResponse();
+        if (!follow(r.term, r.leader)) {
+            resp.term = term;
+            return resp;
+        }
+        resp.term = term;
+        long prev = r.prevIndex;
+        int skip = 0;
+        if (prev > lastIndex()) {
+            resp.conflict = lastIndex() + 1;
+            return resp;
+        } else if (prev < snapshotIndex) {
+            // Everything up to the snapshot is committed, so it matches.
+            skip = (int) Math.min(r.entries.size(), snapshotIndex - prev);
+            prev += skip;
+        } else if (termAt(prev) != r.prevTerm) {
+            // Skip back over the whole conflicting term at once.
+            long conflictTerm = termAt(prev);
+            long i = prev;
+            while (i > snapshotIndex + 1 && termAt(i - 1) == conflictTerm) {
+                i--;
+            }
+            resp.conflict = i;
+            return resp;
+        }
+        long index = prev;
+        for (Entry e : r.entries.subList(skip, r.entries.size())) {
+            index++;
+            if (index <= lastIndex()) {
+                if (termAt(index) == e.term) {
+                    continue;
+                }
+                log.subList((int) (index - snapshotIndex - 1), log.size()).clear();
+            }
+            log.add(e);
+        }
+        resp.success = true;
+        resp.match = index;
+        // A heartbeat's entries may stop short of what is already committed
+        // here, which mustn't move commitIndex back.
+        if (r.commit > commitIndex) {
+            commitIndex = Math.max(commitIndex, Math.min(r.commit, index));
+            apply();
+        }
+        if (!voter && commitIndex >= r.commit) {
+            Log.info("Raft node " + id + " caught up with " + r.leader + ", becoming a voter");
+            voter = true;
+            votedFor = r.leader;
+        }
+        return resp;
+    }
+
+    private synchronized AppendResponse installSnapshot(SnapshotRequest r) {
+        AppendResponse resp = new AppendResponse();
+        if (!follow(r.term, r.leader)) {
+            resp.term = term;
+            return resp;
+        }
+        resp.term = term;
+        resp.success = true;
+        resp.match = r.index;
+        if (r.index <= commitIndex) {
+            return resp;
+        }
+        if (r.index < lastIndex() && termAt(r.index) == r.lastTerm) {
+            log.subList(0, (int) (r.index - snapshotIndex)).clear();
+        } else {
+            log.clear();
+        }
+        machine.restore(r.data);
+        snapshot = r.data;
+        snapshotIndex = r.index;
+        snapshotTerm = r.lastTerm;
+        commitIndex = r.index;
+        lastApplied = r.index;
+        return resp;
+    }
+
+    private synchronized Status status() {
+        Status s = new Status();
+        s.term = term;
+        s.voter = voter;
+        s.leader = leader;
+        s.lastIndex = lastIndex();
+        s.lastTerm = termAt(s.lastIndex);
+        return s;
+    }
+
+    // Commits the latest entry of this term that a majority has, and
+    // everything before it.
+    private void advanceCommit() {
+        for (long n = lastIndex(); n > commitIndex && termAt(n) == term; n--) {
+            int count = 1;
+            for (String peer : peers) {
+                if (matchIndex.get(peer) >= n) {
+                    count++;
+                }
+            }
+            if (count >= majority()) {
+                commitIndex = n;
+                apply();
+                return;
+            }
+        }
+    }
+
+    // Applies committed entries and completes their proposals. The proposals
+    // are only ever waited on, so completing them here runs nothing else.
+    private void apply() {
+        while (lastApplied < commitIndex) {
+            lastApplied++;
+            Entry e = log.get((int) (lastApplied - snapshotIndex - 1));
+            BatchResult result = e.command == null ? null : machine.apply(lastApplied, e.command);
+            CompletableFuture<BatchResult> f = proposals.remove(lastApplied);
+            if (f != null) {
+                f.complete(result);
+            }
+        }
+        if (log.size() > SNAPSHOT_ENTRIES && lastApplied > snapshotIndex) {
+            snapshotTerm = termAt(lastApplied);
+            snapshot = machine.snapshot();
+            log.subList(0, (int) (lastApplied - snapshotIndex)).clear();
+            snapshotIndex = lastApplied;
+        }
+        notifyAll();
+    }
+
+    // Sends a follower whatever it's missing, or a heartbeat if it's missing
+    // nothing, one request at a time for as long as this node is leader.
+    private void replicate(String peer) {
+        long sentTerm = -1;
+        long sentAt = Long.MIN_VALUE / 2;
+        long retryAt = Long.MIN_VALUE / 2;
+        while (running) {
+            Object req;
+            long reqTerm;
+            long next;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        if (!running) {
+                            return;
+                        }
+                        long now = now();
+                        if (role != Role.LEADER) {
+                            wait(HEARTBEAT_MILLIS);
+                        } else if (now < retryAt) {
+                            wait(retryAt - now);
+                        } else if (sentTerm != term || nextIndex.get(peer) <= lastIndex()
+                                || now >= sentAt + HEARTBEAT_MILLIS) {
+                            break;
+                        } else {
+                            wait(sentAt + HEARTBEAT_MILLIS - now);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                reqTerm = term;
+                next = nextIndex.get(peer);
+                if (next <= snapshotIndex) {
+                    SnapshotRequest s = new SnapshotRequest();
+                    s.term = term;
+                    s.leader = id;
+                    s.index = snapshotIndex;
+                    s.lastTerm = snapshotTerm;
+                    s.data = snapshot;
+                    req = s;
+                } else {
+                    AppendRequest a = new AppendRequest();
+                    a.term = term;
+                    a.leader = id;
+                    a.prevIndex = next - 1;
+                    a.prevTerm = termAt(next - 1);
+                    int from = (int) (next - snapshotIndex - 1);
+                    a.entries = new ArrayList<>(log.subList(from, Math.min(log.size(), from + MAX_BATCH)));
+                    a.commit = commitIndex;
+                    req = a;
+                }
+            }
+            sentTerm = reqTerm;
+            sentAt = now();
+            AppendResponse resp;
+            try {
+                String path = req instanceof SnapshotRequest ? "/raft/snapshot" : "/raft/append";
+                resp = call(peer, path, req, AppendResponse.class, RPC_TIMEOUT_MILLIS);
+            } catch (IOException ex) {
+                Log.debug("Raft append to " + peer + " failed: " + ex.getMessage());
+                retryAt = now() + HEARTBEAT_MILLIS;
+                continue;
+            }
+            synchronized (this) {
+                if (resp.term > term) {
+                    stepDown(resp.term);
+                    continue;
+                }
+                if (role != Role.LEADER || term != reqTerm) {
+                    continue;
+                }
+                ackedAt.put(peer, sentAt);
+                if (resp.success) {
+                    matchIndex.put(peer, Math.max(matchIndex.get(peer), resp.match));
+                    nextIndex.put(peer, resp.match + 1);
+                    advanceCommit();
+                } else {
+                    nextIndex.put(peer, Math.max(1, resp.conflict > 0 && resp.conflict < next ? resp.conflict : next - 1));
+                }
+                notifyAll();
+            }
+        }
+    }
+}
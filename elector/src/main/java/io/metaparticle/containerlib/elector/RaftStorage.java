@@ -0,0 +1,328 @@
+package io.metaparticle.containerlib.elector;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import io.kubernetes.client.ApiException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps locks replicated across a small cluster of LockServers with Raft, so
+// they can run highly available without Kubernetes. Every write is a command
+// in the RaftNode log, and compare-and-swap on resourceVersion happens when
+// it's applied, so it is linearizable; the version of a lock is the log index
+// of its last write. Reads are served by the leader from its own state while
+// it holds its lease. Followers forward reads and writes to the leader, and
+// anything that can't reach a leader with a quorum fails with a 503, which
+// clients retry.
+//
+// Nothing is written to disk: the locks survive as long as a majority of the
+// nodes do (see RaftNode). Released locks are removed, expired ones are kept
+// until they are next written.
+public class RaftStorage implements StorageInterface {
+    // How long a write waits to commit, and a read for the lease, before a 503.
+    private static final long QUORUM_TIMEOUT_MILLIS = 5000;
+    private static final int FORWARD_TIMEOUT_MILLIS = 10000;
+
+    static class Command {
+        @SerializedName("op")
+        String op;
+        @SerializedName("name")
+        String name;
+        @SerializedName("lock")
+        Lock lock;
+        // The resourceVersion updates and releases expect.
+        @SerializedName("version")
+        long version;
+    }
+
+    static class Read {
+        @SerializedName("name")
+        String name;
+        // For waits, the version to wait for a change from and for how long.
+        @SerializedName("version")
+        String version;
+        @SerializedName("timeout")
+        long timeoutMillis;
+    }
+
+    private final Gson gson = LockAdapter.newGson();
+    // Applied state, guarded by lock. Writes signal waiters on changed. Not a
+    // monitor, which would pin a virtual thread to its carrier while it waits.
+    private final HashMap<String, Lock> locks = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final RaftNode node;
+
+    // self is this node's raft URL, e.g. http://10.0.0.1:7070, served on its
+    // port, and peers the URLs of every node in the cluster.
+    public RaftStorage(String self, List<String> peers) throws IOException {
+        node = new RaftNode(self, peers, URI.create(self).getPort(), new RaftNode.StateMachine() {
+            public BatchResult apply(long index, String command) {
+                return RaftStorage.this.apply(index, gson.fromJson(command, Command.class));
+            }
+
+            public String snapshot() {
+                lock.lock();
+                try {
+                    return gson.toJson(locks.values().toArray(new Lock[0]));
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            public void restore(String snapshot) {
+                lock.lock();
+                try {
+                    locks.clear();
+                    for (Lock l : gson.fromJson(snapshot, Lock[].class)) {
+                        locks.put(l.metadata.getName(), l);
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        node.serve("/raft/command", Command.class, this::commit);
+        node.serve("/raft/get", Read.class, this::read);
+        node.serve("/raft/wait", Read.class, this::await);
+        node.start();
+    }
+
+    public void stop() {
+        node.stop();
+    }
+
+    boolean isLeader() {
+        return node.isLeader();
+    }
+
+    private static long parseVersion(String resourceVersion) {
+        try {
+            return Long.parseLong(resourceVersion);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private BatchResult apply(long index, Command c) {
+        lock.lock();
+        try {
+            Lock current = locks.get(c.name);
+            if (c.op.equals("create")) {
+                if (current != null) {
+                    return BatchResult.failure(c.name, 409, "Lock exists!");
+                }
+            } else if (current == null) {
+                return BatchResult.failure(c.name, 404, "Lock doesn't exist!");
+            } else if (parseVersion(current.metadata.getResourceVersion()) != c.version) {
+                return BatchResult.failure(c.name, 409, "Conflict!");
+            }
+            changed.signalAll();
+            if (c.op.equals("release")) {
+                locks.remove(c.name);
+                return BatchResult.success(c.name, null);
+            }
+            Lock next = MemoryStorage.copy(c.lock);
+            next.metadata.resourceVersion(Long.toString(index));
+            locks.put(c.name, next);
+            return BatchResult.success(c.name, MemoryStorage.copy(next));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Command command(String op, Lock l) {
+        Command c = new Command();
+        c.op = op;
+        c.name = l.metadata.getName();
+        c.version = parseVersion(l.metadata.getResourceVersion());
+        if (!op.equals("release")) {
+            c.lock = l;
+        }
+        return c;
+    }
+
+    // Runs a command through the log, if this node is the leader.
+    private BatchResult commit(Command c) {
+        return result(c.name, node.propose(gson.toJson(c)));
+    }
+
+    private static BatchResult result(String name, CompletableFuture<BatchResult> f) {
+        if (f == null) {
+            return BatchResult.failure(name, 503, "Not the raft leader");
+        }
+        try {
+            return f.get(QUORUM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            return BatchResult.failure(name, 503, "Timed out waiting for a raft quorum");
+        } catch (ExecutionException ex) {
+            return BatchResult.failure(name, 503, "Raft leadership lost, the write may or may not have happened");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return BatchResult.failure(name, 503, "Interrupted");
+        }
+    }
+
+    // Reads a lock from this node's state, if it's the leader and holds the lease.
+    private BatchResult read(Read r) {
+        try {
+            if (!node.awaitLease(QUORUM_TIMEOUT_MILLIS)) {
+                return BatchResult.failure(r.name, 503, "Not the raft leader, or no quorum");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return BatchResult.failure(r.name, 503, "Interrupted");
+        }
+        lock.lock();
+        try {
+            Lock l = locks.get(r.name);
+            return l == null
+                ? BatchResult.failure(r.name, 404, "Not found")
+                : BatchResult.success(r.name, MemoryStorage.copy(l));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the lock to change or expire on this node, then reads it as above.
+    private BatchResult await(Read r) {
+        long version = parseVersion(r.version);
+        long deadline = System.currentTimeMillis() + r.timeoutMillis;
+        lock.lock();
+        try {
+            Lock l = locks.get(r.name);
+            if (l == null) {
+                return BatchResult.failure(r.name, 404, "Not found");
+            }
+            try {
+                while (l != null && parseVersion(l.metadata.getResourceVersion()) == version) {
+                    long now = System.currentTimeMillis();
+                    long wait = Math.min(deadline, MemoryStorage.expiry(l)) - now;
+                    if (wait <= 0) {
+                        break;
+                    }
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                    l = locks.get(r.name);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return BatchResult.failure(r.name, 503, "Interrupted");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return read(r);
+    }
+
+    private BatchResult forward(String path, Object body, String name, int timeoutMillis) throws ApiException {
+        String leader = node.leader();
+        if (leader == null) {
+            throw new ApiException(503, "No raft leader");
+        }
+        try {
+            return node.call(leader, path, body, BatchResult.class, timeoutMillis);
+        } catch (IOException ex) {
+            return BatchResult.failure(name, 503, "Raft leader unreachable: " + ex.getMessage());
+        }
+    }
+
+    private static Lock check(BatchResult r) throws ApiException {
+        if (r.code != 200) {
+            throw new ApiException(r.code, r.msg);
+        }
+        return r.lock;
+    }
+
+    private Lock write(Command c) throws ApiException, IOException {
+        return check(node.isLeader() ? commit(c) : forward("/raft/command", c, c.name, FORWARD_TIMEOUT_MILLIS));
+    }
+
+    @Override
+    public Lock createLock(Lock l) throws ApiException, IOException {
+        Lock written = write(command("create", l));
+        l.metadata.resourceVersion(written.metadata.getResourceVersion());
+        return l;
+    }
+
+    @Override
+    public Lock updateLock(Lock l) throws ApiException, IOException {
+        Lock written = write(command("update", l));
+        l.metadata.resourceVersion(written.metadata.getResourceVersion());
+        return l;
+    }
+
+    @Override
+    public void releaseLock(Lock l) throws ApiException, IOException {
+        write(command("release", l));
+    }
+
+    @Override
+    public Lock getLock(String name) throws ApiException, IOException {
+        Read r = new Read();
+        r.name = name;
+        return check(node.isLeader() ? read(r) : forward("/raft/get", r, name, FORWARD_TIMEOUT_MILLIS));
+    }
+
+    // Only the leader has the locks to hand, followers read the whole lock from it.
+    @Override
+    public String getVersion(String name) throws ApiException, IOException {
+        return getLock(name).metadata.getResourceVersion();
+    }
+
+    @Override
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException {
+        Read r = new Read();
+        r.name = name;
+        r.version = resourceVersion;
+        r.timeoutMillis = timeoutMillis;
+        return check(node.isLeader()
+            ? await(r)
+            : forward("/raft/wait", r, name, (int) (timeoutMillis + FORWARD_TIMEOUT_MILLIS)));
+    }
+
+    // Each lock in the batch is its own compare-and-swap. On the leader every
+    // write is proposed before waiting on any, so they share log appends.
+    @Override
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException {
+        List<CompletableFuture<BatchResult>> pending = new ArrayList<>(names.size());
+        for (String name : names) {
+            Lock current;
+            try {
+                current = getLock(name);
+            } catch (ApiException ex) {
+                if (ex.getCode() != 404) {
+                    pending.add(CompletableFuture.completedFuture(BatchResult.failure(name, ex.getCode(), ex.getMessage())));
+                    continue;
+                }
+                current = null;
+            }
+            Lock next = updater.update(name, current == null ? null : MemoryStorage.copy(current));
+            if (next == null) {
+                pending.add(CompletableFuture.completedFuture(current == null
+                    ? BatchResult.failure(name, 404, "Not found")
+                    : BatchResult.success(name, current)));
+                continue;
+            }
+            Command c = command(current == null ? "create" : "update", next);
+            CompletableFuture<BatchResult> f = node.propose(gson.toJson(c));
+            pending.add(f != null ? f : CompletableFuture.completedFuture(
+                forward("/raft/command", c, name, FORWARD_TIMEOUT_MILLIS)));
+        }
+        List<BatchResult> results = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            results.add(result(names.get(i), pending.get(i)));
+        }
+        return results;
+    }
+}
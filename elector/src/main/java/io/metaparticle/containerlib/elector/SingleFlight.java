@@ -0,0 +1,71 @@
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import io.metaparticle.metrics.Counter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+// Merges concurrent calls with the same key into one: the first caller runs
+// the call, and callers that arrive while it is in flight wait for and share
+// its result or its exception.
+class SingleFlight<V> {
+    interface Call<V> {
+        V call() throws ApiException, IOException;
+    }
+
+    private static class Flight<V> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private V value;
+        private Exception error;
+
+        V await() throws ApiException, IOException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for in-flight call");
+            }
+            if (error instanceof ApiException) {
+                throw (ApiException) error;
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw (RuntimeException) error;
+            }
+            return value;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Flight<V>> flights = new ConcurrentHashMap<>();
+    // Counts the callers that shared another caller's call.
+    private final Counter.Child coalesced;
+
+    SingleFlight(Counter.Child coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    // Runs call, or waits for the call already running for key.
+    V execute(String key, Call<V> call) throws ApiException, IOException {
+        Flight<V> mine = new Flight<>();
+        Flight<V> running = flights.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.inc();
+            return running.await();
+        }
+        try {
+            mine.value = call.call();
+            return mine.value;
+        } catch (ApiException | IOException | RuntimeException ex) {
+            mine.error = ex;
+            throw ex;
+        } finally {
+            flights.remove(key, mine);
+            mine.done.countDown();
+        }
+    }
+}
@@ -1,10 +1,38 @@
-package io.metaparticle.containerlib.elector;
-
-import io.kubernetes.client.ApiException;
-import java.io.IOException;
-
-public interface StorageInterface {
-    public Lock createLock(Lock l) throws ApiException, IOException;
-    public Lock updateLock(Lock l) throws ApiException, IOException;
-    public Lock getLock(String name) throws ApiException, IOException;
-}
+package io.metaparticle.containerlib.elector;
+
+import io.kubernetes.client.ApiException;
+import java.io.IOException;
+import java.util.List;
+
+public interface StorageInterface {
+    public interface Updater {
+        // Given the current lock (null if it doesn't exist) returns the lock
+        // to write, or null to leave it as it is.
+        public Lock update(String name, Lock current);
+    }
+
+    public Lock createLock(Lock l) throws ApiException, IOException;
+    public Lock updateLock(Lock l) throws ApiException, IOException;
+    public Lock getLock(String name) throws ApiException, IOException;
+
+    // Returns just the resourceVersion of the named lock, for callers that
+    // only need to know whether it changed. Stores that keep their locks in
+    // memory answer without copying the lock. Throws a 404 ApiException if
+    // the lock doesn't exist.
+    public String getVersion(String name) throws ApiException, IOException;
+
+    // Releases the lock if it is still at l's resourceVersion, so that the next
+    // caller can acquire it straight away, by deleting it or marking it expired.
+    // Throws a 409 ApiException if the lock has changed since l was read.
+    public void releaseLock(Lock l) throws ApiException, IOException;
+
+    // Blocks until the named lock no longer has the given resourceVersion, or until
+    // timeoutMillis elapses, and then returns the current lock. Throws a 404
+    // ApiException if the lock doesn't exist (or is deleted while waiting).
+    public Lock waitLock(String name, String resourceVersion, long timeoutMillis) throws ApiException, IOException;
+
+    // Reads each named lock, passes it through updater and writes back the result,
+    // returning one result per name in the same order. A failure on one lock
+    // doesn't stop the others.
+    public List<BatchResult> updateLocks(List<String> names, Updater updater) throws ApiException, IOException;
+}
\ No newline at end of file
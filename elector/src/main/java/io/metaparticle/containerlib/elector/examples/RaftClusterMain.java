@@ -0,0 +1,23 @@
+package io.metaparticle.containerlib.elector.examples;
+
+import io.metaparticle.containerlib.elector.LockServer;
+import io.metaparticle.containerlib.elector.RaftStorage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs a three node RaftStorage cluster on localhost in one process, with a
+// LockServer for each node on 13131, 13141 and 13151. Any of them can be
+// handed to a client, e.g. new Lock("test", "http://localhost:13141").
+public class RaftClusterMain {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> peers = Arrays.asList(
+            "http://localhost:7071", "http://localhost:7072", "http://localhost:7073");
+        for (int i = 0; i < peers.size(); i++) {
+            RaftStorage storage = new RaftStorage(peers.get(i), peers);
+            new Thread(new LockServer(storage, "node-" + i, 30 * 1000, 13131 + 10 * i)).start();
+        }
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,42 @@
+package io.metaparticle.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter extends Metric<Counter.Child> {
+    public static class Child {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    Counter(String name, String help, String[] labelNames) {
+        super(name, help, labelNames);
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child();
+    }
+
+    @Override
+    protected String type() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeChild(Writer w, String labels, Child child) throws IOException {
+        w.write(series(name, labels) + " " + child.get() + "\n");
+    }
+}
@@ -0,0 +1,82 @@
+package io.metaparticle.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram extends Metric<Histogram.Child> {
+    // Latency buckets in seconds, from half a millisecond up to a full long-poll.
+    public static final double[] LATENCY_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    public class Child {
+        // counts[i] is the number of observations in (buckets[i-1], buckets[i]],
+        // the last one is everything above the largest bucket.
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Child() {
+            counts = new LongAdder[buckets.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < buckets.length && value > buckets[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        // Observes the time since startNanos (from System.nanoTime()) in seconds.
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder c : counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+    }
+
+    private final double[] buckets;
+
+    Histogram(String name, String help, double[] buckets, String[] labelNames) {
+        super(name, help, labelNames);
+        this.buckets = buckets.clone();
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child();
+    }
+
+    @Override
+    protected String type() {
+        return "histogram";
+    }
+
+    @Override
+    protected void writeChild(Writer w, String labels, Child child) throws IOException {
+        long cumulative = 0;
+        for (int i = 0; i <= buckets.length; i++) {
+            cumulative += child.counts[i].sum();
+            String le = i < buckets.length ? format(buckets[i]) : "+Inf";
+            w.write(series(name + "_bucket", withLabel(labels, "le=\"" + le + "\"")) + " " + cumulative + "\n");
+        }
+        w.write(series(name + "_sum", labels) + " " + format(child.getSum()) + "\n");
+        w.write(series(name + "_count", labels) + " " + cumulative + "\n");
+    }
+}
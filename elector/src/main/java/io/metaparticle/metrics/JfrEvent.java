@@ -0,0 +1,157 @@
+package io.metaparticle.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A JDK Flight Recorder event, so that lock latencies can be lined up with GC
+// and safepoint pauses in the same recording. We build for Java 8, which has
+// no jdk.jfr to compile against, so event types are defined at runtime with
+// jdk.jfr.EventFactory and driven through method handles. On a JDK without
+// JFR they do nothing.
+//
+// Types are enabled by default, without stack traces. While no recording is
+// running begin() only allocates and checks, and set() and commit() do
+// nothing. An event's duration runs from begin() to commit(), which may be on
+// different threads.
+public final class JfrEvent {
+    private static final MethodHandle newAnnotation;
+    private static final MethodHandle newValue;
+    private static final MethodHandle create;
+    private static final MethodHandle newEvent;
+    private static final MethodHandle begin;
+    private static final MethodHandle isEnabled;
+    private static final MethodHandle set;
+    private static final MethodHandle commit;
+    private static final Class<?>[] annotations;
+
+    static {
+        MethodHandle[] handles = new MethodHandle[8];
+        Class<?>[] types = null;
+        try {
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            handles[0] = lookup.findConstructor(Class.forName("jdk.jfr.AnnotationElement"),
+                MethodType.methodType(void.class, Class.class, Object.class));
+            handles[1] = lookup.findConstructor(Class.forName("jdk.jfr.ValueDescriptor"),
+                MethodType.methodType(void.class, Class.class, String.class));
+            handles[2] = lookup.findStatic(factory, "create", MethodType.methodType(factory, List.class, List.class));
+            handles[3] = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event));
+            handles[4] = lookup.findVirtual(event, "begin", MethodType.methodType(void.class));
+            handles[5] = lookup.findVirtual(event, "isEnabled", MethodType.methodType(boolean.class));
+            handles[6] = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class));
+            handles[7] = lookup.findVirtual(event, "commit", MethodType.methodType(void.class));
+            types = new Class<?>[] {
+                Class.forName("jdk.jfr.Name"),
+                Class.forName("jdk.jfr.Label"),
+                Class.forName("jdk.jfr.Description"),
+                Class.forName("jdk.jfr.Category"),
+                Class.forName("jdk.jfr.StackTrace"),
+            };
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Arrays.fill(handles, null);
+            types = null;
+        }
+        newAnnotation = handles[0];
+        newValue = handles[1];
+        create = handles[2];
+        newEvent = handles[3];
+        begin = handles[4];
+        isEnabled = handles[5];
+        set = handles[6];
+        commit = handles[7];
+        annotations = types;
+    }
+
+    public static final class Type {
+        // The jdk.jfr.EventFactory, or null if there's no JFR.
+        private final Object factory;
+
+        private Type(Object factory) {
+            this.factory = factory;
+        }
+
+        // Starts an event of this type. Never fails, at worst the event is lost.
+        public JfrEvent begin() {
+            if (factory == null) {
+                return NONE;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                if (!(boolean) isEnabled.invoke(event)) {
+                    return NONE;
+                }
+                begin.invoke(event);
+                return new JfrEvent(event);
+            } catch (Throwable ex) {
+                return NONE;
+            }
+        }
+    }
+
+    private static final JfrEvent NONE = new JfrEvent(null);
+
+    // Defines an event type in the "Metaparticle" category, with fields given
+    // as pairs of name and type (String.class, int.class, long.class or
+    // boolean.class), which set() refers to by position.
+    public static Type type(String name, String label, String description, Object... fields) {
+        if (create == null) {
+            return new Type(null);
+        }
+        try {
+            List<Object> meta = new ArrayList<>();
+            meta.add(annotation(0, name));
+            meta.add(annotation(1, label));
+            meta.add(annotation(2, description));
+            meta.add(annotation(3, new String[] { "Metaparticle" }));
+            meta.add(annotation(4, false));
+            List<Object> values = new ArrayList<>();
+            for (int i = 0; i < fields.length; i += 2) {
+                values.add((Object) newValue.invoke((Class<?>) fields[i + 1], (String) fields[i]));
+            }
+            return new Type((Object) create.invoke(meta, Collections.unmodifiableList(values)));
+        } catch (Throwable ex) {
+            return new Type(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object annotation(int type, Object value) throws Throwable {
+        return (Object) newAnnotation.invoke((Class<? extends Annotation>) annotations[type], value);
+    }
+
+    // The jdk.jfr.Event, or null if it isn't being recorded.
+    private final Object event;
+
+    private JfrEvent(Object event) {
+        this.event = event;
+    }
+
+    // Sets the field at position index, boxed as its declared type.
+    public JfrEvent set(int index, Object value) {
+        if (event != null) {
+            try {
+                set.invoke(event, index, value);
+            } catch (Throwable ex) {
+                // Leave the field unset.
+            }
+        }
+        return this;
+    }
+
+    public void commit() {
+        if (event != null) {
+            try {
+                commit.invoke(event);
+            } catch (Throwable ex) {
+                // Lose the event rather than fail the caller.
+            }
+        }
+    }
+}
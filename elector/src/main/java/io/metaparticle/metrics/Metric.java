@@ -0,0 +1,119 @@
+package io.metaparticle.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A named metric with one child per combination of label values.
+//
+// Some labels take values without a bound, like the name of a lock, and
+// children are never removed, so a metric keeps at most MAX_CHILDREN of them.
+// Combinations seen after that are all counted together, with every label
+// set to OTHER.
+public abstract class Metric<Child> {
+    public static final int MAX_CHILDREN = Integer.getInteger("io.metaparticle.metrics.maxChildren", 1000);
+    public static final String OTHER = "_other";
+
+    protected final String name;
+    protected final String help;
+    protected final String[] labelNames;
+    protected final ConcurrentHashMap<List<String>, Child> children;
+    private final List<String> other;
+
+    protected Metric(String name, String help, String[] labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+        this.children = new ConcurrentHashMap<>();
+        String[] others = new String[labelNames.length];
+        Arrays.fill(others, OTHER);
+        this.other = Arrays.asList(others);
+    }
+
+    protected abstract Child newChild();
+
+    protected abstract String type();
+
+    protected abstract void writeChild(Writer w, String labels, Child child) throws IOException;
+
+    public Child labels(String... values) {
+        if (values.length != labelNames.length) {
+            throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels");
+        }
+        List<String> key = Arrays.asList(values);
+        Child child = children.get(key);
+        if (child == null) {
+            // Racing callers can go a few past the limit, which is fine.
+            if (children.size() >= MAX_CHILDREN) {
+                key = other;
+            }
+            child = children.computeIfAbsent(key, k -> newChild());
+        }
+        return child;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Writes this metric in the Prometheus text exposition format.
+    void write(Writer w) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " " + type() + "\n");
+        for (Map.Entry<List<String>, Child> entry : children.entrySet()) {
+            writeChild(w, formatLabels(entry.getKey()), entry.getValue());
+        }
+    }
+
+    private String formatLabels(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labelNames.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labelNames[i]).append("=\"");
+            String v = values.get(i);
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    // A series name with its labels, e.g. name{a="b"}, or just name if there are none.
+    static String series(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    // Joins a metric's labels with an extra one (e.g. le), handling the no-label case.
+    static String withLabel(String labels, String extra) {
+        return labels.isEmpty() ? extra : labels + "," + extra;
+    }
+
+    static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,37 @@
+package io.metaparticle.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// A set of metrics that can be read programmatically or written out in the
+// Prometheus text format. The LockServer's /metrics path serves defaultRegistry,
+// which is also where the client Lock records its metrics.
+public class MetricsRegistry {
+    public static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ConcurrentSkipListMap<String, Metric<?>> metrics = new ConcurrentSkipListMap<>();
+
+    // Returns the counter with this name, creating it if needed.
+    public Counter counter(String name, String help, String... labelNames) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter(n, help, labelNames));
+    }
+
+    // Returns the histogram with this name, creating it if needed.
+    public Histogram histogram(String name, String help, double[] buckets, String... labelNames) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram(n, help, buckets, labelNames));
+    }
+
+    public Metric<?> get(String name) {
+        return metrics.get(name);
+    }
+
+    public void write(Writer w) throws IOException {
+        for (Metric<?> metric : metrics.values()) {
+            metric.write(w);
+        }
+        w.flush();
+    }
+}
@@ -0,0 +1,163 @@
+package io.metaparticle.containerlib.elector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.metaparticle.containerlib.elector.Admission.Permit;
+import io.metaparticle.containerlib.elector.Admission.Priority;
+import io.metaparticle.containerlib.elector.Admission.Rejected;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AdmissionTest {
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @After
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    // Asks for a permit on another thread, and waits until it has queued.
+    private Future<Permit> queue(Admission a, Priority priority, String client) throws Exception {
+        int before = a.queued();
+        Future<Permit> f = pool.submit(() -> a.admit(priority, client));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (a.queued() == before) {
+            assertTrue("Never queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        return f;
+    }
+
+    private static void assertWaiting(Future<?> f) throws Exception {
+        try {
+            f.get(100, TimeUnit.MILLISECONDS);
+            fail("Admitted while it should be waiting");
+        } catch (TimeoutException ex) {
+            // Expected.
+        }
+    }
+
+    private static void assertRejected(Future<?> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Admitted while it should be turned away");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof Rejected);
+        }
+    }
+
+    @Test
+    public void handsAPermitToTheHighestPriorityWaiter() throws Exception {
+        Admission a = new Admission(1, 10, 10, 5000);
+        Permit held = a.admit(Priority.ACQUIRE, "a");
+        Future<Permit> read = queue(a, Priority.READ, "b");
+        Future<Permit> acquire = queue(a, Priority.ACQUIRE, "c");
+        Future<Permit> renew = queue(a, Priority.RENEW, "d");
+
+        held.close();
+        Permit first = renew.get(5, TimeUnit.SECONDS);
+        assertWaiting(acquire);
+        assertWaiting(read);
+        // Closing twice mustn't hand out a second permit.
+        first.close();
+        first.close();
+        Permit second = acquire.get(5, TimeUnit.SECONDS);
+        assertWaiting(read);
+        second.close();
+        read.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0, a.queued());
+
+        // With everything let go, the next request goes straight in.
+        a.admit(Priority.READ, "e").close();
+    }
+
+    @Test
+    public void shedsTheNewestLowerPriorityWaiterWhenFull() throws Exception {
+        Admission a = new Admission(1, 2, 10, 5000);
+        Permit held = a.admit(Priority.ACQUIRE, "a");
+        Future<Permit> olderRead = queue(a, Priority.READ, "b");
+        Future<Permit> newerRead = queue(a, Priority.READ, "c");
+
+        // The queue is full, so the renewal takes the newer read's place.
+        Future<Permit> renew = pool.submit(() -> a.admit(Priority.RENEW, "d"));
+        assertRejected(newerRead);
+        assertWaiting(renew);
+        assertWaiting(olderRead);
+        assertEquals(2, a.queued());
+
+        // Nothing queued below a read, so another one is turned away.
+        try {
+            a.admit(Priority.READ, "e");
+            fail("Queued past maxQueued");
+        } catch (Rejected ex) {
+            assertTrue(ex.retryAfterMillis >= 1000);
+        }
+
+        held.close();
+        renew.get(5, TimeUnit.SECONDS).close();
+        olderRead.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    public void turnsAwayWhatQueuesTooLong() throws Exception {
+        Admission a = new Admission(1, 10, 10, 100);
+        Permit held = a.admit(Priority.ACQUIRE, "a");
+        long start = System.currentTimeMillis();
+        try {
+            a.admit(Priority.ACQUIRE, "b");
+            fail("Admitted while the only permit was held");
+        } catch (Rejected ex) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        assertEquals(0, a.queued());
+        held.close();
+        a.admit(Priority.ACQUIRE, "b").close();
+    }
+
+    @Test
+    public void capsEachClientButNotItsRenewals() throws Exception {
+        Admission a = new Admission(10, 10, 2, 5000);
+        Permit first = a.admit(Priority.ACQUIRE, "a");
+        Permit second = a.admit(Priority.READ, "a");
+        try {
+            a.admit(Priority.ACQUIRE, "a");
+            fail("Admitted past maxPerClient");
+        } catch (Rejected ex) {
+            // Expected.
+        }
+        a.admit(Priority.RENEW, "a").close();
+        a.admit(Priority.ACQUIRE, "b").close();
+
+        first.close();
+        a.admit(Priority.ACQUIRE, "a").close();
+        second.close();
+    }
+
+    @Test
+    public void limitsWaitingGets() throws Exception {
+        Admission a = new Admission(10, 10, 10, 5000);
+        a.setMaxWaiting(2);
+        a.startWait();
+        a.startWait();
+        try {
+            a.startWait();
+            fail("Waited past maxWaiting");
+        } catch (Rejected ex) {
+            // Expected.
+        }
+        a.endWait();
+        a.startWait();
+        a.endWait();
+        a.endWait();
+    }
+}
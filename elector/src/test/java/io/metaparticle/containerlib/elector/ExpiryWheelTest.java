@@ -0,0 +1,92 @@
+package io.metaparticle.containerlib.elector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+// Uses wheels of 8 buckets and 5ms ticks, so the inner wheel covers 40ms, the
+// outer one 320ms, and anything later starts out on the overflow list.
+public class ExpiryWheelTest {
+    private static final long TICK_MILLIS = 5;
+    // How late a timer may fire: a tick, plus room for a busy machine.
+    private static final long LATE_MILLIS = TICK_MILLIS + 100;
+
+    private final Map<String, Long> fired = new ConcurrentHashMap<>();
+    private CountDownLatch latch;
+    private ExpiryWheel wheel;
+
+    private void start(int timers) {
+        latch = new CountDownLatch(timers);
+        wheel = new ExpiryWheel(TICK_MILLIS, 3, (name, deadline) -> {
+            fired.put(name, System.currentTimeMillis());
+            latch.countDown();
+        });
+    }
+
+    @After
+    public void stop() {
+        wheel.stop();
+    }
+
+    private void assertOnTime(String name, long deadline) {
+        Long at = fired.get(name);
+        assertTrue(name + " didn't fire", at != null);
+        assertTrue(name + " fired " + (deadline - at) + "ms early", at >= deadline);
+        assertTrue(name + " fired " + (at - deadline) + "ms late", at <= deadline + LATE_MILLIS);
+    }
+
+    @Test
+    public void firesFromEveryLevelOnTime() throws Exception {
+        start(5);
+        long now = System.currentTimeMillis();
+        // Inner wheel, outer wheel, and the overflow list once and twice over.
+        long[] delays = {10, 100, 250, 700, 1500};
+        for (long d : delays) {
+            wheel.schedule("t" + d, now + d);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (long d : delays) {
+            assertOnTime("t" + d, now + d);
+        }
+    }
+
+    @Test
+    public void firesTimersScheduledInThePastStraightAway() throws Exception {
+        start(1);
+        long now = System.currentTimeMillis();
+        wheel.schedule("past", now - 1000);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(fired.get("past") <= now + LATE_MILLIS);
+    }
+
+    @Test
+    public void firesEveryTimerSharingABucket() throws Exception {
+        start(100);
+        long deadline = System.currentTimeMillis() + 400;
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule("t" + i, deadline);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(100, fired.size());
+        for (int i = 0; i < 100; i++) {
+            assertOnTime("t" + i, deadline);
+        }
+    }
+
+    @Test
+    public void stopsFiring() throws Exception {
+        start(1);
+        wheel.stop();
+        wheel.schedule("late", System.currentTimeMillis() + 20);
+        assertTrue(!latch.await(200, TimeUnit.MILLISECONDS));
+        assertNull(fired.get("late"));
+    }
+}
@@ -0,0 +1,163 @@
+package io.metaparticle.containerlib.elector;
+
+import static io.metaparticle.containerlib.elector.MemoryStorageTest.assertCode;
+import static io.metaparticle.containerlib.elector.MemoryStorageTest.lock;
+import static io.metaparticle.containerlib.elector.MemoryStorageTest.version;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Run by Maven with 64KB segments, so the log rolls and snapshots are taken.
+public class FileStorageTest {
+    private static final int SEGMENT_BYTES = Integer.getInteger("io.metaparticle.file.segmentBytes", 32 << 20);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private FileStorage storage;
+
+    @Before
+    public void open() throws IOException {
+        dir = folder.getRoot().toPath();
+        storage = new FileStorage(dir);
+    }
+
+    @After
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    private void restart() throws IOException {
+        storage.close();
+        storage = new FileStorage(dir);
+    }
+
+    @Test
+    public void replaysEveryWriteAfterARestart() throws Exception {
+        // The lock expected under each name, null once released.
+        Map<String, Lock> expected = new HashMap<>();
+        long highest = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                String name = "lock-" + i;
+                Lock current = expected.get(name);
+                Lock next;
+                if (current == null) {
+                    next = storage.createLock(lock(name, "owner-" + round, 60000));
+                } else if ((i + round) % 3 == 0) {
+                    storage.releaseLock(current);
+                    next = null;
+                } else {
+                    current.spec.owner = "owner-" + round;
+                    next = storage.updateLock(current);
+                }
+                expected.put(name, next);
+                if (next != null) {
+                    highest = Math.max(highest, version(next));
+                }
+            }
+        }
+
+        restart();
+        for (Map.Entry<String, Lock> e : expected.entrySet()) {
+            if (e.getValue() == null) {
+                assertCode(404, () -> storage.getLock(e.getKey()));
+            } else {
+                Lock l = storage.getLock(e.getKey());
+                assertEquals(e.getValue().spec.owner, l.spec.owner);
+                assertEquals(version(e.getValue()), version(l));
+            }
+        }
+        assertTrue(version(storage.createLock(lock("new", "one", 60000))) > highest);
+    }
+
+    @Test
+    public void stopsReplayAtATornRecord() throws Exception {
+        storage.createLock(lock("a", "one", 60000));
+        Lock b = storage.createLock(lock("b", "one", 60000));
+        b.spec.owner = "two";
+        storage.updateLock(b);
+        storage.close();
+
+        // Tear the last record, the update of b, as a crash halfway through
+        // writing it would.
+        Path segment = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "log-*")) {
+            for (Path p : files) {
+                if (segment == null || p.compareTo(segment) > 0) {
+                    segment = p;
+                }
+            }
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        for (int i = end - 4; i < end; i++) {
+            bytes[i] = 0;
+        }
+        Files.write(segment, bytes);
+
+        storage = new FileStorage(dir);
+        assertEquals("one", storage.getLock("a").spec.owner);
+        Lock replayed = storage.getLock("b");
+        assertEquals("one", replayed.spec.owner);
+
+        // Writes go on after the torn record, and survive the next restart.
+        replayed.spec.owner = "three";
+        storage.updateLock(replayed);
+        restart();
+        assertEquals("three", storage.getLock("b").spec.owner);
+    }
+
+    @Test
+    public void refusesALockTooLargeForASegment() throws Exception {
+        assumeTrue(SEGMENT_BYTES <= 1 << 20);
+        StringBuilder owner = new StringBuilder();
+        while (owner.length() <= SEGMENT_BYTES) {
+            owner.append("0123456789");
+        }
+        assertCode(413, () -> storage.createLock(lock("big", owner.toString(), 60000)));
+        assertCode(404, () -> storage.getLock("big"));
+
+        // Nothing of it reached the log either.
+        restart();
+        assertCode(404, () -> storage.getLock("big"));
+    }
+
+    @Test
+    public void ownsItsDirectoryUntilClosed() throws Exception {
+        try {
+            new FileStorage(dir);
+            fail("Opened a directory in use");
+        } catch (IOException ex) {
+            // Expected.
+        }
+        storage.createLock(lock("a", "one", 60000));
+        storage.close();
+        try {
+            storage.createLock(lock("b", "one", 60000));
+            fail("Wrote after close");
+        } catch (IOException ex) {
+            // Expected.
+        }
+        storage = new FileStorage(dir);
+        assertEquals("one", storage.getLock("a").spec.owner);
+    }
+}
@@ -0,0 +1,155 @@
+package io.metaparticle.containerlib.elector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MemoryStorageTest {
+    private final MemoryStorage storage = new MemoryStorage();
+
+    @After
+    public void close() {
+        storage.close();
+    }
+
+    static Lock lock(String name, String owner, long ttlMillis) {
+        Lock l = new Lock();
+        l.metadata = new V1ObjectMeta().name(name).namespace("default");
+        l.spec = new Lock.LockSpec();
+        l.spec.owner = owner;
+        l.spec.setExpiryMillis(System.currentTimeMillis() + ttlMillis);
+        return l;
+    }
+
+    static long version(Lock l) {
+        return Long.parseLong(l.metadata.getResourceVersion());
+    }
+
+    static void assertCode(int code, Callable<?> c) throws Exception {
+        try {
+            c.call();
+            fail("Expected a " + code);
+        } catch (ApiException ex) {
+            assertEquals(code, ex.getCode());
+        }
+    }
+
+    @Test
+    public void writesAtAStaleVersionConflict() throws Exception {
+        Lock created = storage.createLock(lock("a", "one", 60000));
+        assertCode(409, () -> storage.createLock(lock("a", "two", 60000)));
+
+        Lock stale = MemoryStorage.copy(created);
+        Lock updated = storage.updateLock(MemoryStorage.copy(created));
+        assertEquals(version(created) + 1, version(updated));
+
+        stale.spec.owner = "two";
+        assertCode(409, () -> storage.updateLock(stale));
+        // A failed update leaves the caller's version alone.
+        assertEquals(version(created), version(stale));
+        assertCode(409, () -> {
+            storage.releaseLock(stale);
+            return null;
+        });
+        assertEquals("one", storage.getLock("a").spec.owner);
+
+        storage.releaseLock(updated);
+        assertCode(404, () -> storage.getLock("a"));
+        assertCode(404, () -> storage.updateLock(updated));
+    }
+
+    @Test
+    public void exactlyOneRacingUpdateWins() throws Exception {
+        Lock created = storage.createLock(lock("race", "none", 60000));
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Lock mine = MemoryStorage.copy(created);
+                mine.spec.owner = "owner-" + i;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        storage.updateLock(mine);
+                        return true;
+                    } catch (ApiException ex) {
+                        assertEquals(409, ex.getCode());
+                        return false;
+                    }
+                }));
+            }
+            start.countDown();
+            int won = 0;
+            for (Future<Boolean> f : results) {
+                won += f.get() ? 1 : 0;
+            }
+            assertEquals(1, won);
+            assertEquals(version(created) + 1, version(storage.getLock("race")));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void versionsKeepGoingUpAcrossRelease() throws Exception {
+        Lock first = storage.createLock(lock("v", "one", 60000));
+        storage.releaseLock(first);
+        Lock second = storage.createLock(lock("v", "two", 60000));
+        assertTrue(version(second) > version(first));
+    }
+
+    // Maven runs tests with a short gcMillis, anything else waits too long.
+    @Test
+    public void versionsKeepGoingUpAcrossCollection() throws Exception {
+        assumeTrue(Long.getLong("io.metaparticle.memory.gcMillis", Long.MAX_VALUE) <= 1000);
+        Lock expiring = storage.createLock(lock("v", "one", 50));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (storage.map.containsKey("v")) {
+            assertTrue("Never collected", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        Lock recreated = storage.createLock(lock("v", "two", 60000));
+        assertTrue(version(recreated) > version(expiring));
+    }
+
+    @Test
+    public void waitersWakeWhenTheLockChangesOrExpires() throws Exception {
+        Lock created = storage.createLock(lock("w", "one", 200));
+        long start = System.currentTimeMillis();
+        Lock seen = storage.waitLock("w", created.metadata.getResourceVersion(), 5000);
+        long waited = System.currentTimeMillis() - start;
+        assertEquals(version(created), version(seen));
+        assertTrue("Woke after " + waited + "ms", waited >= 150 && waited < 2000);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Lock current = storage.createLock(lock("w2", "one", 60000));
+            String version = current.metadata.getResourceVersion();
+            Future<Lock> waiter = pool.submit(() -> storage.waitLock("w2", version, 5000));
+            Thread.sleep(50);
+            current.spec.owner = "two";
+            current.spec.setExpiryMillis(System.currentTimeMillis() + 60000);
+            storage.updateLock(current);
+            assertEquals("two", waiter.get().spec.owner);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
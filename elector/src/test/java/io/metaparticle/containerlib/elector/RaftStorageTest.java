@@ -0,0 +1,162 @@
+package io.metaparticle.containerlib.elector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1ObjectMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Test;
+
+// Runs three RaftStorage nodes on localhost. Each test uses its own ports, so
+// a node that is slow to let go of one can't break the next test.
+public class RaftStorageTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final List<String> urls = new ArrayList<>();
+    private final RaftStorage[] nodes = new RaftStorage[3];
+
+    @After
+    public void stopAll() {
+        for (RaftStorage n : nodes) {
+            if (n != null) {
+                n.stop();
+            }
+        }
+    }
+
+    private void startAll(int basePort) throws Exception {
+        for (int i = 0; i < nodes.length; i++) {
+            urls.add("http://localhost:" + (basePort + i));
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            start(i);
+        }
+    }
+
+    private void start(int i) throws Exception {
+        nodes[i] = new RaftStorage(urls.get(i), urls);
+    }
+
+    private void stop(int i) {
+        nodes[i].stop();
+        nodes[i] = null;
+    }
+
+    private static Lock lock(String name, String owner) {
+        Lock l = new Lock();
+        l.metadata = new V1ObjectMeta().name(name).namespace("default");
+        l.spec = new Lock.LockSpec();
+        l.spec.owner = owner;
+        return l;
+    }
+
+    private static <T> T eventually(Callable<T> c) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                T t = c.call();
+                if (t != null) {
+                    return t;
+                }
+            } catch (ApiException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw ex;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // The index of the node that is leader, once one is.
+    private int leader() throws Exception {
+        return eventually(() -> {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != null && nodes[i].isLeader()) {
+                    return i;
+                }
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void survivesLeaderKill() throws Exception {
+        startAll(17101);
+        int first = leader();
+        Lock created = eventually(() -> nodes[(first + 1) % 3].createLock(lock("a", "one")));
+        stop(first);
+
+        int second = leader();
+        assertTrue(second != first);
+        int other = 3 - first - second;
+        Lock read = eventually(() -> nodes[other].getLock("a"));
+        assertEquals(created.metadata.getResourceVersion(), read.metadata.getResourceVersion());
+        read.spec.owner = "two";
+        nodes[other].updateLock(read);
+        assertEquals("two", nodes[second].getLock("a").spec.owner);
+    }
+
+    @Test
+    public void restartedEmptyNodesDontLoseTheLog() throws Exception {
+        startAll(17111);
+        int first = leader();
+        for (int i = 0; i < 20; i++) {
+            nodes[first].createLock(lock("l" + i, "one"));
+        }
+        // Restarting both followers at once leaves a single node with the
+        // log; the two empty ones mustn't elect each other over it.
+        int survivor = (first + 1) % 3;
+        for (int i = 0; i < 3; i++) {
+            if (i != survivor) {
+                stop(i);
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            if (i != survivor) {
+                start(i);
+            }
+        }
+        leader();
+        for (int i = 0; i < 3; i++) {
+            RaftStorage n = nodes[i];
+            assertEquals("one", eventually(() -> n.getLock("l19")).spec.owner);
+        }
+    }
+
+    @Test
+    public void leaseReadsSeeEveryCommittedWrite() throws Exception {
+        startAll(17121);
+        int leader = leader();
+        int a = (leader + 1) % 3;
+        int b = (leader + 2) % 3;
+        Lock l = eventually(() -> nodes[a].createLock(lock("r", "one")));
+        for (int i = 0; i < 10; i++) {
+            l.spec.owner = "w" + i;
+            l = nodes[i % 2 == 0 ? a : b].updateLock(l);
+            assertEquals(l.metadata.getResourceVersion(), nodes[leader].getLock("r").metadata.getResourceVersion());
+            assertEquals("w" + i, nodes[i % 2 == 0 ? b : a].getLock("r").spec.owner);
+        }
+
+        // Without a quorum the lease runs out, and reads fail rather than
+        // return what may be stale.
+        stop(a);
+        stop(b);
+        Thread.sleep(500);
+        try {
+            nodes[leader].getLock("r");
+            fail("Read without a quorum");
+        } catch (ApiException ex) {
+            assertEquals(503, ex.getCode());
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package io.metaparticle.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class MetricTest {
+    @Test
+    public void labelsPastTheLimitAreCountedTogether() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter c = registry.counter("test_total", "A test counter.", "lock");
+        for (int i = 0; i < Metric.MAX_CHILDREN + 10; i++) {
+            c.labels("lock-" + i).inc();
+        }
+        assertEquals(Metric.MAX_CHILDREN + 1, c.children.size());
+        assertEquals(10, c.labels(Metric.OTHER).get());
+        // Names that already have a child keep it.
+        c.labels("lock-0").inc();
+        assertEquals(2, c.labels("lock-0").get());
+
+        StringWriter w = new StringWriter();
+        registry.write(w);
+        assertTrue(w.toString().contains("test_total{lock=\"_other\"} 10\n"));
+    }
+}